@@ -269,6 +269,89 @@ public class ByteBufferBackedChannelBuffer extends AbstractChannelBuffer {
         return readBytes;
     }
 
+    @Override
+    public int indexOf(int fromIndex, int toIndex, byte value) {
+        if (buffer.hasArray()) {
+            return ChannelBuffers.indexOf(
+                    buffer.array(), buffer.arrayOffset(), capacity,
+                    fromIndex, toIndex, value);
+        }
+
+        if (fromIndex <= toIndex) {
+            fromIndex = Math.max(fromIndex, 0);
+            if (fromIndex >= toIndex || capacity == 0) {
+                return -1;
+            }
+            return firstIndexOf(fromIndex, toIndex, value);
+        } else {
+            fromIndex = Math.min(fromIndex, capacity);
+            if (fromIndex < 0 || capacity == 0) {
+                return -1;
+            }
+            return lastIndexOf(fromIndex, toIndex, value);
+        }
+    }
+
+    /**
+     * Compares 8 bytes at a time.  {@code hasValue()} leaves the most
+     * significant bit set in every byte of the word which equals to the
+     * value, so the position of the first match is derived from the number
+     * of leading (big endian) or trailing (little endian) zero bits.
+     */
+    private int firstIndexOf(int fromIndex, int toIndex, byte value) {
+        final long pattern = (value & 0xFFL) * 0x0101010101010101L;
+        final boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+
+        int i = fromIndex;
+        for (; i <= toIndex - 8; i += 8) {
+            long found = hasValue(buffer.getLong(i), pattern);
+            if (found != 0) {
+                if (bigEndian) {
+                    return i + (Long.numberOfLeadingZeros(found) >>> 3);
+                } else {
+                    return i + (Long.numberOfTrailingZeros(found) >>> 3);
+                }
+            }
+        }
+
+        for (; i < toIndex; i ++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int lastIndexOf(int fromIndex, int toIndex, byte value) {
+        final long pattern = (value & 0xFFL) * 0x0101010101010101L;
+        final boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+
+        int i = fromIndex;
+        for (; i - 8 >= toIndex; i -= 8) {
+            long found = hasValue(buffer.getLong(i - 8), pattern);
+            if (found != 0) {
+                if (bigEndian) {
+                    return i - 1 - (Long.numberOfTrailingZeros(found) >>> 3);
+                } else {
+                    return i - 1 - (Long.numberOfLeadingZeros(found) >>> 3);
+                }
+            }
+        }
+
+        for (i --; i >= toIndex; i --) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long hasValue(long word, long pattern) {
+        long x = word ^ pattern;
+        long t = (x & 0x7F7F7F7F7F7F7F7FL) + 0x7F7F7F7F7F7F7F7FL;
+        return ~(t | x | 0x7F7F7F7F7F7F7F7FL);
+    }
+
     public ByteBuffer toByteBuffer(int index, int length) {
         if (index == 0 && length == capacity()) {
             return buffer.duplicate();
@@ -821,6 +821,18 @@ public class ChannelBuffers {
      * This method is useful when implementing a new buffer type.
      */
     public static int indexOf(ChannelBuffer buffer, int fromIndex, int toIndex, ChannelBufferIndexFinder indexFinder) {
+        // Let the buffer perform a bulk search for the well-known finders
+        // which match a single byte value.
+        if (indexFinder == ChannelBufferIndexFinder.LF) {
+            return buffer.indexOf(fromIndex, toIndex, (byte) '\n');
+        }
+        if (indexFinder == ChannelBufferIndexFinder.CR) {
+            return buffer.indexOf(fromIndex, toIndex, (byte) '\r');
+        }
+        if (indexFinder == ChannelBufferIndexFinder.NUL) {
+            return buffer.indexOf(fromIndex, toIndex, (byte) 0);
+        }
+
         if (fromIndex <= toIndex) {
             return firstIndexOf(buffer, fromIndex, toIndex, indexFinder);
         } else {
@@ -858,6 +870,48 @@ public class ChannelBuffers {
                       swapInt((int) (value >>> 32)) & 0xffffffffL;
     }
 
+    /**
+     * Searches the specified region of a byte array which backs a buffer of
+     * the specified {@code capacity}.  The indexes are relative to
+     * {@code arrayOffset}, which is the array index of the buffer's first
+     * byte.  The search semantic is identical to
+     * {@link #indexOf(ChannelBuffer, int, int, byte)}.
+     */
+    static int indexOf(byte[] array, int arrayOffset, int capacity, int fromIndex, int toIndex, byte value) {
+        if (fromIndex <= toIndex) {
+            fromIndex = Math.max(fromIndex, 0);
+            if (fromIndex >= toIndex || capacity == 0) {
+                return -1;
+            }
+            if (toIndex > capacity) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            final int end = toIndex + arrayOffset;
+            for (int i = fromIndex + arrayOffset; i < end; i ++) {
+                if (array[i] == value) {
+                    return i - arrayOffset;
+                }
+            }
+        } else {
+            fromIndex = Math.min(fromIndex, capacity);
+            if (fromIndex < 0 || capacity == 0) {
+                return -1;
+            }
+            if (toIndex < 0) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            final int end = toIndex + arrayOffset;
+            for (int i = fromIndex - 1 + arrayOffset; i >= end; i --) {
+                if (array[i] == value) {
+                    return i - arrayOffset;
+                }
+            }
+        }
+        return -1;
+    }
+
     private static int firstIndexOf(ChannelBuffer buffer, int fromIndex, int toIndex, byte value) {
         fromIndex = Math.max(fromIndex, 0);
         if (fromIndex >= toIndex || buffer.capacity() == 0) {
@@ -71,6 +71,11 @@ public class DuplicatedChannelBuffer extends AbstractChannelBuffer implements Wr
         return buffer.capacity();
     }
 
+    @Override
+    public int indexOf(int fromIndex, int toIndex, byte value) {
+        return buffer.indexOf(fromIndex, toIndex, value);
+    }
+
     public byte getByte(int index) {
         return buffer.getByte(index);
     }
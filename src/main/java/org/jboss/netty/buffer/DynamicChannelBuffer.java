@@ -72,6 +72,11 @@ public class DynamicChannelBuffer extends AbstractChannelBuffer {
         return buffer.capacity();
     }
 
+    @Override
+    public int indexOf(int fromIndex, int toIndex, byte value) {
+        return buffer.indexOf(fromIndex, toIndex, value);
+    }
+
     public byte getByte(int index) {
         return buffer.getByte(index);
     }
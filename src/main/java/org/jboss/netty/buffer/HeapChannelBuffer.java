@@ -173,6 +173,11 @@ public abstract class HeapChannelBuffer extends AbstractChannelBuffer {
         return readBytes;
     }
 
+    @Override
+    public int indexOf(int fromIndex, int toIndex, byte value) {
+        return ChannelBuffers.indexOf(array, 0, array.length, fromIndex, toIndex, value);
+    }
+
     public ChannelBuffer slice(int index, int length) {
         if (index == 0) {
             if (length == 0) {
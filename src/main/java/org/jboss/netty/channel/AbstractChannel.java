@@ -25,6 +25,7 @@ package org.jboss.netty.channel;
 import java.net.SocketAddress;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.jboss.netty.util.TimeBasedUuidGenerator;
 
@@ -39,6 +40,10 @@ import org.jboss.netty.util.TimeBasedUuidGenerator;
  */
 public abstract class AbstractChannel implements Channel, Comparable<Channel> {
 
+    private static final AtomicReferenceFieldUpdater<AbstractChannel, Object>
+        executorStateUpdater = AtomicReferenceFieldUpdater.newUpdater(
+                AbstractChannel.class, Object.class, "executorState");
+
     private final UUID id = TimeBasedUuidGenerator.generate();
     private final Channel parent;
     private final ChannelFactory factory;
@@ -47,6 +52,7 @@ public abstract class AbstractChannel implements Channel, Comparable<Channel> {
 
     private final AtomicBoolean closed = new AtomicBoolean();
     private volatile int interestOps = OP_READ;
+    private volatile Object executorState;
 
     /** Cache for the string representation of this channel */
     private String strVal;
@@ -146,6 +152,33 @@ public abstract class AbstractChannel implements Channel, Comparable<Channel> {
         return closed.compareAndSet(false, true);
     }
 
+    /**
+     * Returns the per-channel state which an executor attached to this
+     * channel via {@link #attachExecutorState(Object)}.
+     *
+     * @return the attached state, or {@code null} if nothing is attached
+     */
+    public final Object getExecutorState() {
+        return executorState;
+    }
+
+    /**
+     * Attaches the per-channel state of an executor to this channel so that
+     * the executor finds the state without a map lookup.  The state can be
+     * attached only once and is never replaced.  This method is intended to
+     * be called by an internal component - please do not call it unless you
+     * know what you are doing.
+     *
+     * @return {@code true} if and only if the state was attached.
+     *         {@code false} if another state was attached already.
+     */
+    public final boolean attachExecutorState(Object state) {
+        if (state == null) {
+            throw new NullPointerException("state");
+        }
+        return executorStateUpdater.compareAndSet(this, null, state);
+    }
+
     public ChannelFuture bind(SocketAddress localAddress) {
         return Channels.bind(this, localAddress);
     }
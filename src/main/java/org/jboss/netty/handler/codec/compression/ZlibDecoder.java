@@ -0,0 +1,189 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.codec.compression;
+
+import static org.jboss.netty.buffer.ChannelBuffers.*;
+import static org.jboss.netty.channel.Channels.*;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+/**
+ * Decompresses a {@link ChannelBuffer} using the DEFLATE algorithm.
+ * <p>
+ * The received buffers are fed into an {@link Inflater} as they arrive, and
+ * the data decompressed from each received buffer is sent upstream as a new
+ * {@link ChannelBuffer}.  Therefore, a frame decoder should be placed after
+ * this decoder if the decompressed stream needs to be split into messages.
+ * <p>
+ * A {@link ZlibDecoder} holds an {@link Inflater} which is reused for the
+ * whole lifetime of the channel and is released when the channel is closed.
+ * Therefore, a new {@link ZlibDecoder} instance must be created for each
+ * channel.
+ * <p>
+ * A {@link CompressionException} is raised if any data is received after
+ * the end of the compressed stream.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ * @see ZlibEncoder
+ */
+@ChannelPipelineCoverage("one")
+public class ZlibDecoder extends SimpleChannelHandler {
+
+    private final Inflater inflater;
+    private final byte[] dictionary;
+    private volatile boolean finished;
+
+    /**
+     * Creates a new zlib decoder.
+     */
+    public ZlibDecoder() {
+        this(ZlibWrapper.ZLIB);
+    }
+
+    /**
+     * Creates a new decoder with the specified wrapper.
+     */
+    public ZlibDecoder(ZlibWrapper wrapper) {
+        this(wrapper, null);
+    }
+
+    /**
+     * Creates a new zlib decoder with the specified preset dictionary.
+     *
+     * @param dictionary  the preset dictionary
+     */
+    public ZlibDecoder(byte[] dictionary) {
+        this(ZlibWrapper.ZLIB, dictionary);
+    }
+
+    /**
+     * Creates a new decoder with the specified wrapper and preset dictionary.
+     *
+     * @param dictionary  the preset dictionary, or {@code null} if unused.
+     *                    It must be the dictionary the {@link ZlibEncoder} of
+     *                    the remote peer uses.
+     */
+    public ZlibDecoder(ZlibWrapper wrapper, byte[] dictionary) {
+        if (wrapper == null) {
+            throw new NullPointerException("wrapper");
+        }
+
+        inflater = new Inflater(wrapper == ZlibWrapper.NONE);
+        if (wrapper == ZlibWrapper.NONE && dictionary != null) {
+            // A raw stream does not ask for the dictionary.
+            inflater.setDictionary(dictionary);
+        }
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Returns {@code true} if and only if the end of the compressed stream
+     * has been reached.
+     */
+    public boolean isClosed() {
+        return finished;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+            throws Exception {
+        Object m = e.getMessage();
+        if (!(m instanceof ChannelBuffer)) {
+            ctx.sendUpstream(e);
+            return;
+        }
+
+        ChannelBuffer compressed = (ChannelBuffer) m;
+        if (!compressed.readable()) {
+            return;
+        }
+        if (finished) {
+            throw new CompressionException(
+                    "received " + compressed.readableBytes() +
+                    " byte(s) after the end of the compressed stream");
+        }
+
+        ByteBuffer in = ZlibUtil.toHeapByteBuffer(compressed);
+        inflater.setInput(in.array(), in.arrayOffset() + in.position(), in.remaining());
+
+        byte[] out = new byte[in.remaining() << 1];
+        int length = 0;
+        try {
+            for (;;) {
+                length += inflater.inflate(out, length, out.length - length);
+                if (inflater.needsDictionary()) {
+                    if (dictionary == null) {
+                        throw new CompressionException(
+                                "decompression failure: preset dictionary required");
+                    }
+                    inflater.setDictionary(dictionary);
+                    continue;
+                }
+                if (inflater.finished()) {
+                    finished = true;
+                    break;
+                }
+                if (length < out.length) {
+                    // All input has been consumed.
+                    break;
+                }
+                out = ZlibUtil.grow(out, length);
+            }
+        } catch (DataFormatException ex) {
+            throw new CompressionException("decompression failure", ex);
+        }
+
+        if (length > 0) {
+            fireMessageReceived(
+                    ctx, e.getChannel(), wrappedBuffer(out, 0, length),
+                    e.getRemoteAddress());
+        }
+
+        if (finished && inflater.getRemaining() > 0) {
+            throw new CompressionException(
+                    "received " + inflater.getRemaining() +
+                    " byte(s) after the end of the compressed stream");
+        }
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
+            throws Exception {
+        finished = true;
+        inflater.end();
+        ctx.sendUpstream(e);
+    }
+}
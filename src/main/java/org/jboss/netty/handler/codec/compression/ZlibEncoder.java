@@ -0,0 +1,260 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.codec.compression;
+
+import static org.jboss.netty.buffer.ChannelBuffers.*;
+import static org.jboss.netty.channel.Channels.*;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.DefaultMessageEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+/**
+ * Compresses a {@link ChannelBuffer} using the DEFLATE algorithm.
+ * <p>
+ * All messages written to a channel belong to a single compressed stream
+ * which is flushed at the end of every message, so that the remote peer can
+ * decompress a message as soon as it is received while the compression
+ * ratio still benefits from the data sent previously.  The stream is
+ * finished when the channel is requested to be closed.
+ * <p>
+ * A {@link ZlibEncoder} holds a {@link Deflater} which is reused for the
+ * whole lifetime of the channel and is released when the channel is closed.
+ * Therefore, a new {@link ZlibEncoder} instance must be created for each
+ * channel.
+ * <p>
+ * A write requested after the end of the stream has been written fails
+ * with a {@link CompressionException}.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ * @see ZlibDecoder
+ */
+@ChannelPipelineCoverage("one")
+public class ZlibEncoder extends SimpleChannelHandler {
+
+    private final Deflater deflater;
+    private boolean finished;
+
+    // The compressed messages are queued in the order of compression while
+    // the deflater is locked, and are sent downstream by one thread at a time
+    // after the lock is released.
+    private final Queue<MessageEvent> pendingWrites =
+        new ConcurrentLinkedQueue<MessageEvent>();
+    private final AtomicInteger flushRequests = new AtomicInteger();
+
+    /**
+     * Creates a new zlib encoder with the default compression level
+     * ({@code 6}).
+     */
+    public ZlibEncoder() {
+        this(6);
+    }
+
+    /**
+     * Creates a new zlib encoder with the specified compression level.
+     *
+     * @param compressionLevel
+     *        {@code 1} yields the fastest compression and {@code 9} yields the
+     *        best compression.  {@code 0} means no compression.
+     */
+    public ZlibEncoder(int compressionLevel) {
+        this(ZlibWrapper.ZLIB, compressionLevel);
+    }
+
+    /**
+     * Creates a new encoder with the specified wrapper and compression level.
+     *
+     * @param compressionLevel
+     *        {@code 1} yields the fastest compression and {@code 9} yields the
+     *        best compression.  {@code 0} means no compression.
+     */
+    public ZlibEncoder(ZlibWrapper wrapper, int compressionLevel) {
+        this(wrapper, compressionLevel, null);
+    }
+
+    /**
+     * Creates a new zlib encoder with the specified compression level and
+     * the specified preset dictionary.
+     *
+     * @param compressionLevel
+     *        {@code 1} yields the fastest compression and {@code 9} yields the
+     *        best compression.  {@code 0} means no compression.
+     * @param dictionary  the preset dictionary
+     */
+    public ZlibEncoder(int compressionLevel, byte[] dictionary) {
+        this(ZlibWrapper.ZLIB, compressionLevel, dictionary);
+    }
+
+    /**
+     * Creates a new encoder with the specified wrapper, compression level and
+     * preset dictionary.
+     *
+     * @param compressionLevel
+     *        {@code 1} yields the fastest compression and {@code 9} yields the
+     *        best compression.  {@code 0} means no compression.
+     * @param dictionary  the preset dictionary, or {@code null} if unused.
+     *                    The {@link ZlibDecoder} of the remote peer must use
+     *                    the same dictionary.
+     */
+    public ZlibEncoder(ZlibWrapper wrapper, int compressionLevel, byte[] dictionary) {
+        if (wrapper == null) {
+            throw new NullPointerException("wrapper");
+        }
+        ZlibUtil.validateCompressionLevel(compressionLevel);
+
+        deflater = new Deflater(compressionLevel, wrapper == ZlibWrapper.NONE);
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+    }
+
+    /**
+     * Returns {@code true} if and only if the end of the compressed stream
+     * has been written.
+     */
+    public boolean isClosed() {
+        synchronized (deflater) {
+            return finished;
+        }
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e)
+            throws Exception {
+        Object m = e.getMessage();
+        if (!(m instanceof ChannelBuffer)) {
+            ctx.sendDownstream(e);
+            return;
+        }
+
+        ChannelBuffer uncompressed = (ChannelBuffer) m;
+        if (!uncompressed.readable()) {
+            ctx.sendDownstream(e);
+            return;
+        }
+
+        synchronized (deflater) {
+            if (finished) {
+                e.getFuture().setFailure(new CompressionException(
+                        "write requested after the end of the compressed stream"));
+                return;
+            }
+
+            ByteBuffer in = ZlibUtil.toHeapByteBuffer(uncompressed);
+            deflater.setInput(in.array(), in.arrayOffset() + in.position(), in.remaining());
+            pendingWrites.offer(new DefaultMessageEvent(
+                    e.getChannel(), e.getFuture(),
+                    deflate(in.remaining(), Deflater.SYNC_FLUSH),
+                    e.getRemoteAddress()));
+        }
+
+        flushPendingWrites(ctx);
+    }
+
+    @Override
+    public void closeRequested(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+        ChannelFuture future;
+        synchronized (deflater) {
+            if (finished) {
+                ctx.sendDownstream(e);
+                return;
+            }
+
+            finished = true;
+            deflater.finish();
+            future = future(e.getChannel());
+            pendingWrites.offer(new DefaultMessageEvent(
+                    e.getChannel(), future, deflate(0, Deflater.NO_FLUSH), null));
+        }
+
+        flushPendingWrites(ctx);
+        future.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                ctx.sendDownstream(e);
+            }
+        });
+    }
+
+    private void flushPendingWrites(ChannelHandlerContext ctx) {
+        if (flushRequests.getAndIncrement() != 0) {
+            // Another thread is flushing - it will send our message too.
+            return;
+        }
+
+        int requests = 1;
+        do {
+            for (;;) {
+                MessageEvent e = pendingWrites.poll();
+                if (e == null) {
+                    break;
+                }
+                ctx.sendDownstream(e);
+            }
+            requests = flushRequests.addAndGet(-requests);
+        } while (requests != 0);
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
+            throws Exception {
+        synchronized (deflater) {
+            finished = true;
+            deflater.end();
+        }
+        ctx.sendUpstream(e);
+    }
+
+    private ChannelBuffer deflate(int inputLength, int flushMode) {
+        // The worst case expansion of zlib plus the sync flush marker.
+        byte[] out = new byte[inputLength + (inputLength >>> 12) +
+                              (inputLength >>> 14) + (inputLength >>> 25) + 19];
+        int length = 0;
+        for (;;) {
+            length += deflater.deflate(out, length, out.length - length, flushMode);
+            if (length < out.length && (flushMode != Deflater.NO_FLUSH || deflater.finished())) {
+                break;
+            }
+            if (length == out.length) {
+                out = ZlibUtil.grow(out, length);
+            }
+        }
+        return wrappedBuffer(out, 0, length);
+    }
+}
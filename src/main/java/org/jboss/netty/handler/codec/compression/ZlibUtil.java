@@ -0,0 +1,76 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.codec.compression;
+
+import java.nio.ByteBuffer;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Utility methods shared by {@link ZlibEncoder} and {@link ZlibDecoder}.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ */
+final class ZlibUtil {
+
+    /**
+     * Returns a heap {@link ByteBuffer} whose remaining bytes are the
+     * readable bytes of the specified buffer.  The backing array of the
+     * specified buffer is used as it is if possible.  Otherwise, the
+     * readable bytes are copied into a new array.
+     */
+    static ByteBuffer toHeapByteBuffer(ChannelBuffer buffer) {
+        ByteBuffer nioBuffer = buffer.toByteBuffer();
+        if (nioBuffer.hasArray()) {
+            return nioBuffer;
+        }
+
+        byte[] copy = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), copy);
+        return ByteBuffer.wrap(copy);
+    }
+
+    /**
+     * Returns a copy of the specified array whose length is at least
+     * twice as long as the original length.
+     */
+    static byte[] grow(byte[] array, int length) {
+        byte[] newArray = new byte[Math.max(array.length << 1, 64)];
+        System.arraycopy(array, 0, newArray, 0, length);
+        return newArray;
+    }
+
+    static void validateCompressionLevel(int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException(
+                    "compressionLevel: " + compressionLevel + " (expected: 0-9)");
+        }
+    }
+
+    private ZlibUtil() {
+        // Unused
+    }
+}
@@ -47,7 +47,9 @@ public class Delimiters {
 
     /**
      * Returns {@code CR ('\r')} and {@code LF ('\n')} delimiters, which could
-     * be used for text-based line protocols.
+     * be used for text-based line protocols.  Please consider using
+     * {@link LineBasedFrameDecoder} instead, which locates both line endings
+     * in a single pass.
      */
     public static ChannelBuffer[] lineDelimiter() {
         return new ChannelBuffer[] {
@@ -137,6 +137,18 @@ import org.jboss.netty.channel.SimpleChannelHandler;
  * {@link ChannelUpstreamHandler} receives a {@link MessageEvent} which
  * contains a POJO rather than a {@link ChannelBuffer}.
  *
+ * <h3>Returning a slice of the cumulative buffer</h3>
+ * <p>
+ * The cumulative buffer is compacted when new data is received, which moves
+ * the bytes that were not read yet.  Therefore, {@code decode()} has to copy
+ * a frame out of the buffer by default (e.g. {@link ChannelBuffer#readBytes(int)}).
+ * A decoder which is {@linkplain #FrameDecoder(boolean) constructed} with
+ * {@code preserveReadBytes} set to {@code true} can return a slice instead
+ * (e.g. {@link ChannelBuffer#readSlice(int)}), because the bytes which were
+ * read are never moved or overwritten.  The unread remainder is moved into a
+ * new cumulative buffer instead, and the old one is released when no slice
+ * refers to it anymore.
+ *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Trustin Lee (tlee@redhat.com)
  *
@@ -147,7 +159,28 @@ import org.jboss.netty.channel.SimpleChannelHandler;
 @ChannelPipelineCoverage("one")
 public abstract class FrameDecoder extends SimpleChannelHandler {
 
-    private final ChannelBuffer cumulation = ChannelBuffers.dynamicBuffer();
+    private final boolean preserveReadBytes;
+    private ChannelBuffer cumulation = ChannelBuffers.dynamicBuffer();
+
+    /**
+     * Creates a new instance whose {@link #decode(ChannelHandlerContext, Channel, ChannelBuffer)}
+     * copies the frames out of the cumulative buffer.
+     */
+    protected FrameDecoder() {
+        this(false);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param preserveReadBytes
+     *        {@code true} if the bytes which were read from the cumulative
+     *        buffer must never be moved or overwritten, so that the decoded
+     *        frames can be the slices of the cumulative buffer
+     */
+    protected FrameDecoder(boolean preserveReadBytes) {
+        this.preserveReadBytes = preserveReadBytes;
+    }
 
     @Override
     public void messageReceived(
@@ -165,13 +198,18 @@ public abstract class FrameDecoder extends SimpleChannelHandler {
         }
 
         if (cumulation.readable()) {
-            cumulation.discardReadBytes();
+            discardReadBytes();
             cumulation.writeBytes(input);
             callDecode(ctx, e.getChannel(), cumulation, e.getRemoteAddress());
         } else {
-            callDecode(ctx, e.getChannel(), input, e.getRemoteAddress());
-            if (input.readable()) {
-                cumulation.writeBytes(input);
+            try {
+                callDecode(ctx, e.getChannel(), input, e.getRemoteAddress());
+            } finally {
+                // Keep the remainder even if decode() raised an exception.
+                if (input.readable()) {
+                    discardReadBytes();
+                    cumulation.writeBytes(input);
+                }
             }
         }
     }
@@ -223,6 +261,20 @@ public abstract class FrameDecoder extends SimpleChannelHandler {
         return decode(ctx, channel, buffer);
     }
 
+    /**
+     * Discards the bytes which were read from the cumulative buffer.  They
+     * are left intact if the slices of the buffer might refer to them.
+     */
+    private void discardReadBytes() {
+        if (!preserveReadBytes) {
+            cumulation.discardReadBytes();
+        } else if (cumulation.readerIndex() != 0) {
+            ChannelBuffer newCumulation = ChannelBuffers.dynamicBuffer();
+            newCumulation.writeBytes(cumulation);
+            cumulation = newCumulation;
+        }
+    }
+
     private void callDecode(
             ChannelHandlerContext context, Channel channel,
             ChannelBuffer cumulation, SocketAddress remoteAddress) throws Exception {
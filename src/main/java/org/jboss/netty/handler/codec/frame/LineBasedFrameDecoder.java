@@ -0,0 +1,185 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.codec.frame;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+
+/**
+ * A {@link FrameDecoder} which splits the received {@link ChannelBuffer}s on
+ * line endings.  Both {@code "\n"} and {@code "\r\n"} are recognized in a
+ * single pass, which makes this decoder a cheaper alternative to
+ * {@link DelimiterBasedFrameDecoder}{@code (}{@link Delimiters#lineDelimiter() Delimiters.lineDelimiter()}{@code )}.
+ * <p>
+ * The decoder remembers how far it has scanned the cumulative buffer, so the
+ * bytes of a partially received line are never examined twice.  If a line
+ * grows beyond the maximum length, the bytes received so far are discarded
+ * immediately rather than buffered, and the decoder skips everything up to
+ * the next line ending before a {@link TooLongFrameException} is raised.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ */
+public class LineBasedFrameDecoder extends FrameDecoder {
+
+    private final int maxFrameLength;
+    private final boolean stripDelimiter;
+    private final boolean failFast;
+
+    /** The number of bytes after readerIndex which contain no LF. */
+    private int scanOffset;
+    /** {@code true} if an oversized line is being skipped. */
+    private boolean discarding;
+    private int discardedBytes;
+
+    /**
+     * Creates a new instance which strips the line ending from the decoded
+     * frames.
+     *
+     * @param maxFrameLength  the maximum length of the decoded frame.
+     *                        A {@link TooLongFrameException} is thrown if
+     *                        the length of the frame exceeds this value.
+     */
+    public LineBasedFrameDecoder(int maxFrameLength) {
+        this(maxFrameLength, true, false);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxFrameLength  the maximum length of the decoded frame.
+     *                        A {@link TooLongFrameException} is thrown if
+     *                        the length of the frame exceeds this value.
+     * @param stripDelimiter  whether the line ending should be stripped
+     *                        from the decoded frame
+     * @param failFast  If {@code true}, a {@link TooLongFrameException} is
+     *                  thrown as soon as the decoder notices the length of
+     *                  the frame will exceed {@code maxFrameLength}.
+     *                  If {@code false}, it is thrown after the entire
+     *                  oversized line has been skipped.
+     */
+    public LineBasedFrameDecoder(
+            int maxFrameLength, boolean stripDelimiter, boolean failFast) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException(
+                    "maxFrameLength must be a positive integer: " +
+                    maxFrameLength);
+        }
+        this.maxFrameLength = maxFrameLength;
+        this.stripDelimiter = stripDelimiter;
+        this.failFast = failFast;
+    }
+
+    @Override
+    protected Object decode(
+            ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        final int readerIndex = buffer.readerIndex();
+        final int writerIndex = buffer.writerIndex();
+        final int eol = buffer.indexOf(readerIndex + scanOffset, writerIndex, (byte) '\n');
+
+        if (discarding) {
+            if (eol < 0) {
+                // Keep a trailing CR - it belongs to the line ending if
+                // the next byte is LF.
+                int length = buffer.readableBytes() - trailingCr(buffer);
+                discardedBytes += length;
+                buffer.skipBytes(length);
+                return null;
+            }
+
+            // Reached the end of the oversized line - resume decoding.
+            int length = discardedBytes + eol - readerIndex;
+            if (eol > readerIndex && buffer.getByte(eol - 1) == '\r') {
+                length --;
+            }
+            buffer.readerIndex(eol + 1);
+            scanOffset = 0;
+            discarding = false;
+            discardedBytes = 0;
+            if (!failFast) {
+                fail(length);
+            }
+            return null;
+        }
+
+        if (eol < 0) {
+            int readableBytes = writerIndex - readerIndex;
+            // A trailing CR is not counted until the next byte turns out
+            // not to be LF.
+            int length = readableBytes - trailingCr(buffer);
+            if (length > maxFrameLength) {
+                // Skip the partial line instead of accumulating it.
+                discardedBytes = length;
+                discarding = true;
+                scanOffset = 0;
+                buffer.skipBytes(length);
+                if (failFast) {
+                    fail(length);
+                }
+            } else {
+                scanOffset = readableBytes;
+            }
+            return null;
+        }
+
+        scanOffset = 0;
+
+        int length = eol - readerIndex;
+        int delimLength = 1;
+        if (length > 0 && buffer.getByte(eol - 1) == '\r') {
+            length --;
+            delimLength = 2;
+        }
+
+        if (length > maxFrameLength) {
+            buffer.readerIndex(eol + 1);
+            fail(length);
+        }
+
+        ChannelBuffer frame;
+        if (stripDelimiter) {
+            frame = buffer.readBytes(length);
+            buffer.skipBytes(delimLength);
+        } else {
+            frame = buffer.readBytes(length + delimLength);
+        }
+        return frame;
+    }
+
+    private static int trailingCr(ChannelBuffer buffer) {
+        int writerIndex = buffer.writerIndex();
+        if (writerIndex > buffer.readerIndex() &&
+            buffer.getByte(writerIndex - 1) == '\r') {
+            return 1;
+        }
+        return 0;
+    }
+
+    private void fail(int frameLength) throws TooLongFrameException {
+        throw new TooLongFrameException(
+                "The frame length exceeds " + maxFrameLength + ": " + frameLength);
+    }
+}
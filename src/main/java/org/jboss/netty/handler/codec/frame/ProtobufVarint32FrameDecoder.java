@@ -0,0 +1,132 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.codec.frame;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+
+/**
+ * A {@link FrameDecoder} which splits the received {@link ChannelBuffer}s
+ * by the value of the
+ * <a href="http://code.google.com/apis/protocolbuffers/docs/encoding.html#varints">Base
+ * 128 Varint</a> length field which precedes each frame.  For example:
+ * <pre>
+ * BEFORE DECODE (302 bytes)       AFTER DECODE (300 bytes)
+ * +--------+---------------+      +---------------+
+ * | Length | Protobuf Data |----->| Protobuf Data |
+ * | 0xAC02 |  (300 bytes)  |      |  (300 bytes)  |
+ * +--------+---------------+      +---------------+
+ * </pre>
+ * The length field is parsed in place, and each frame is a slice of the
+ * received data rather than a copy.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ * @see ProtobufVarint32LengthFieldPrepender
+ */
+public class ProtobufVarint32FrameDecoder extends FrameDecoder {
+
+    private final int maxFrameLength;
+    private int bytesToDiscard;
+
+    /**
+     * Creates a new instance which does not limit the length of the frame.
+     */
+    public ProtobufVarint32FrameDecoder() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxFrameLength  the maximum length of the decoded frame.
+     *                        A {@link TooLongFrameException} is thrown if
+     *                        the length of the frame exceeds this value.
+     */
+    public ProtobufVarint32FrameDecoder(int maxFrameLength) {
+        super(true);
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException(
+                    "maxFrameLength must be a positive integer: " +
+                    maxFrameLength);
+        }
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    protected Object decode(
+            ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (bytesToDiscard > 0) {
+            // Skip the remainder of the oversized frame.
+            int localBytesToDiscard = Math.min(bytesToDiscard, buffer.readableBytes());
+            buffer.skipBytes(localBytesToDiscard);
+            bytesToDiscard -= localBytesToDiscard;
+            return null;
+        }
+
+        final int writerIndex = buffer.writerIndex();
+        int index = buffer.readerIndex();
+        int length = 0;
+        for (int shift = 0;; shift += 7) {
+            if (index == writerIndex) {
+                // The length field was not received completely yet.
+                return null;
+            }
+
+            byte b = buffer.getByte(index ++);
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+            if (shift == 28) {
+                buffer.readerIndex(index);
+                throw new CorruptedFrameException(
+                        "length wider than 32-bit");
+            }
+        }
+
+        if (length < 0) {
+            buffer.readerIndex(index);
+            throw new CorruptedFrameException("negative length: " + length);
+        }
+
+        if (length > maxFrameLength) {
+            buffer.readerIndex(index);
+            bytesToDiscard = length;
+            throw new TooLongFrameException(
+                    "The frame length exceeds " + maxFrameLength + ": " + length);
+        }
+
+        if (writerIndex - index < length) {
+            // The whole frame was not received yet.
+            return null;
+        }
+
+        buffer.readerIndex(index);
+        return buffer.readSlice(length);
+    }
+}
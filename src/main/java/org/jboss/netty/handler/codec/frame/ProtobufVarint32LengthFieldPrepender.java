@@ -0,0 +1,110 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.codec.frame;
+
+import static org.jboss.netty.buffer.ChannelBuffers.*;
+import static org.jboss.netty.channel.Channels.*;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.MessageEvent;
+
+/**
+ * An encoder that prepends the
+ * <a href="http://code.google.com/apis/protocolbuffers/docs/encoding.html#varints">Base
+ * 128 Varint</a> length field to the requested {@link ChannelBuffer}.
+ * For example:
+ * <pre>
+ * BEFORE ENCODE (300 bytes)       AFTER ENCODE (302 bytes)
+ * +---------------+               +--------+---------------+
+ * | Protobuf Data |-------------->| Length | Protobuf Data |
+ * |  (300 bytes)  |               | 0xAC02 |  (300 bytes)  |
+ * +---------------+               +--------+---------------+
+ * </pre>
+ * The content of the requested buffer is not copied; the length field and
+ * the content are written as a composite buffer.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ * @see ProtobufVarint32FrameDecoder
+ */
+@ChannelPipelineCoverage("all")
+public class ProtobufVarint32LengthFieldPrepender implements ChannelDownstreamHandler {
+
+    public void handleDownstream(
+            ChannelHandlerContext context, ChannelEvent evt) throws Exception {
+        if (!(evt instanceof MessageEvent)) {
+            context.sendDownstream(evt);
+            return;
+        }
+
+        MessageEvent e = (MessageEvent) evt;
+        if (!(e.getMessage() instanceof ChannelBuffer)) {
+            context.sendDownstream(evt);
+            return;
+        }
+
+        ChannelBuffer body = (ChannelBuffer) e.getMessage();
+        int length = body.readableBytes();
+        ChannelBuffer header = buffer(computeRawVarint32Size(length));
+        writeRawVarint32(header, length);
+
+        ChannelBuffer msg;
+        if (length == 0) {
+            msg = header;
+        } else {
+            msg = wrappedBuffer(header, body);
+        }
+        write(context, e.getChannel(), e.getFuture(), msg, e.getRemoteAddress());
+    }
+
+    private static void writeRawVarint32(ChannelBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((byte) value);
+    }
+
+    private static int computeRawVarint32Size(int value) {
+        if ((value & 0xffffffff <<  7) == 0) {
+            return 1;
+        }
+        if ((value & 0xffffffff << 14) == 0) {
+            return 2;
+        }
+        if ((value & 0xffffffff << 21) == 0) {
+            return 3;
+        }
+        if ((value & 0xffffffff << 28) == 0) {
+            return 4;
+        }
+        return 5;
+    }
+}
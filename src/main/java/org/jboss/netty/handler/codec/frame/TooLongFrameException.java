@@ -24,7 +24,8 @@ package org.jboss.netty.handler.codec.frame;
 
 /**
  * An {@link Exception} which is thrown when the length of the frame
- * decoded by {@link DelimiterBasedFrameDecoder} is greater than the maximum.
+ * decoded by {@link DelimiterBasedFrameDecoder} or
+ * {@link LineBasedFrameDecoder} is greater than the maximum.
  *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Trustin Lee (tlee@redhat.com)
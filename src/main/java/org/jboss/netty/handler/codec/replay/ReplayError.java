@@ -37,4 +37,13 @@ class ReplayError extends Error {
     ReplayError() {
         super();
     }
+
+    /**
+     * Does not fill the stack trace because a {@link ReplayError} is
+     * preallocated and thrown very frequently only to unwind the decoder.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
 }
\ No newline at end of file
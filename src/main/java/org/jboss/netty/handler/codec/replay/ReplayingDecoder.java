@@ -172,6 +172,20 @@ import org.jboss.netty.handler.codec.frame.FrameDecoder;
  * }
  * </pre>
  *
+ * <h4>Waiting for the required number of bytes</h4>
+ * <p>
+ * When {@code decode()} fails because of insufficient data, the decoder
+ * already knows how many bytes the failed operation needed.  If the decoder
+ * is created with {@code waitForRequiredBytes} set to {@code true}, it does
+ * not invoke {@code decode()} again until at least that many bytes are
+ * received, so a large message which arrives in many small pieces is not
+ * re-decoded on every read.  This mode requires {@code decode()} to read
+ * the same bytes in the same order when it is replayed from the same
+ * checkpoint, which is true for most decoders.
+ * <p>
+ * {@link #getReplayCount()}, {@link #getLastMessageReplayCount()} and
+ * {@link #getMaxMessageReplayCount()} tell how often {@code decode()} had
+ * to be replayed, which helps finding out where to put more checkpoints.
  *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Trustin Lee (tlee@redhat.com)
@@ -188,8 +202,16 @@ public abstract class ReplayingDecoder<T extends Enum<T>> extends SimpleChannelH
 
     private final ChannelBuffer cumulation = new UnsafeDynamicChannelBuffer(256);
     private final ReplayingDecoderBuffer replayable = new ReplayingDecoderBuffer(cumulation);
+    private final boolean waitForRequiredBytes;
     private volatile T state;
     private volatile int checkpoint;
+    private int requiredBytes;
+
+    private int messageReplayCount;
+    private volatile int lastMessageReplayCount;
+    private volatile int maxMessageReplayCount;
+    private volatile long replayCount;
+    private volatile long decodedMessageCount;
 
     /**
      * Creates a new instance with no initial state (i.e: {@code null}).
@@ -202,7 +224,20 @@ public abstract class ReplayingDecoder<T extends Enum<T>> extends SimpleChannelH
      * Creates a new instance with the specified initial state.
      */
     protected ReplayingDecoder(T initialState) {
+        this(initialState, false);
+    }
+
+    /**
+     * Creates a new instance with the specified initial state.
+     *
+     * @param waitForRequiredBytes
+     *        {@code true} if {@code decode()} should not be replayed until
+     *        the number of bytes required by the last failed attempt is
+     *        received
+     */
+    protected ReplayingDecoder(T initialState, boolean waitForRequiredBytes) {
         this.state = initialState;
+        this.waitForRequiredBytes = waitForRequiredBytes;
     }
 
     /**
@@ -221,6 +256,37 @@ public abstract class ReplayingDecoder<T extends Enum<T>> extends SimpleChannelH
         checkpoint = cumulation.readerIndex();
     }
 
+    /**
+     * Returns the total number of times {@code decode()} was replayed
+     * because of insufficient data.
+     */
+    public long getReplayCount() {
+        return replayCount;
+    }
+
+    /**
+     * Returns the number of messages decoded so far.
+     */
+    public long getDecodedMessageCount() {
+        return decodedMessageCount;
+    }
+
+    /**
+     * Returns the number of times {@code decode()} was replayed until the
+     * last message was decoded.
+     */
+    public int getLastMessageReplayCount() {
+        return lastMessageReplayCount;
+    }
+
+    /**
+     * Returns the maximum number of times {@code decode()} was replayed
+     * until a message was decoded.
+     */
+    public int getMaxMessageReplayCount() {
+        return maxMessageReplayCount;
+    }
+
     /**
      * Decodes the received packets so far into a frame.
      *
@@ -267,6 +333,10 @@ public abstract class ReplayingDecoder<T extends Enum<T>> extends SimpleChannelH
 
         cumulation.discardReadBytes();
         cumulation.writeBytes(input);
+        if (cumulation.readableBytes() < requiredBytes) {
+            // The last replay told that more data is required.
+            return;
+        }
         callDecode(ctx, e.getChannel(), e.getRemoteAddress());
     }
 
@@ -306,7 +376,13 @@ public abstract class ReplayingDecoder<T extends Enum<T>> extends SimpleChannelH
                 }
             } catch (ReplayError replay) {
                 // Return to the checkpoint (or oldPosition) and retry.
+                int checkpoint = this.checkpoint;
                 cumulation.readerIndex(checkpoint);
+                replayCount ++;
+                messageReplayCount ++;
+                if (waitForRequiredBytes) {
+                    requiredBytes = replayable.requiredWriterIndex() - checkpoint;
+                }
             }
 
             if (result == null) {
@@ -322,6 +398,14 @@ public abstract class ReplayingDecoder<T extends Enum<T>> extends SimpleChannelH
             }
 
             // A successful decode
+            requiredBytes = 0;
+            decodedMessageCount ++;
+            lastMessageReplayCount = messageReplayCount;
+            if (messageReplayCount > maxMessageReplayCount) {
+                maxMessageReplayCount = messageReplayCount;
+            }
+            messageReplayCount = 0;
+
             Channels.fireMessageReceived(context, channel, result, remoteAddress);
         }
     }
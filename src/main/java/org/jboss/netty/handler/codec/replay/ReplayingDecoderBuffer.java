@@ -45,6 +45,7 @@ class ReplayingDecoderBuffer implements ChannelBuffer {
     private static final Error REPLAY = new ReplayError();
 
     private final ChannelBuffer buffer;
+    private int requiredWriterIndex;
 
     ReplayingDecoderBuffer(ChannelBuffer buffer) {
         this.buffer = buffer;
@@ -178,18 +179,34 @@ class ReplayingDecoderBuffer implements ChannelBuffer {
     }
 
     public int indexOf(int fromIndex, int toIndex, byte value) {
-        int endIndex = indexOf(buffer.readerIndex(), buffer.writerIndex(), value);
-        if (endIndex < 0) {
-            throw REPLAY;
+        int writerIndex = buffer.writerIndex();
+        if (fromIndex > toIndex) {
+            if (fromIndex > writerIndex) {
+                replay(fromIndex);
+            }
+            return buffer.indexOf(fromIndex, toIndex, value);
+        }
+
+        int endIndex = buffer.indexOf(fromIndex, Math.min(toIndex, writerIndex), value);
+        if (endIndex < 0 && toIndex > writerIndex) {
+            replay(writerIndex + 1);
         }
         return endIndex;
     }
 
     public int indexOf(int fromIndex, int toIndex,
             ChannelBufferIndexFinder indexFinder) {
-        int endIndex = indexOf(buffer.readerIndex(), buffer.writerIndex(), indexFinder);
-        if (endIndex < 0) {
-            throw REPLAY;
+        int writerIndex = buffer.writerIndex();
+        if (fromIndex > toIndex) {
+            if (fromIndex > writerIndex) {
+                replay(fromIndex);
+            }
+            return buffer.indexOf(fromIndex, toIndex, indexFinder);
+        }
+
+        int endIndex = buffer.indexOf(fromIndex, Math.min(toIndex, writerIndex), indexFinder);
+        if (endIndex < 0 && toIndex > writerIndex) {
+            replay(writerIndex + 1);
         }
         return endIndex;
     }
@@ -254,9 +271,9 @@ class ReplayingDecoderBuffer implements ChannelBuffer {
     public ChannelBuffer readBytes(ChannelBufferIndexFinder endIndexFinder) {
         int endIndex = buffer.indexOf(buffer.readerIndex(), buffer.writerIndex(), endIndexFinder);
         if (endIndex < 0) {
-            throw REPLAY;
+            replay(buffer.writerIndex() + 1);
         }
-        return readBytes(endIndex);
+        return readBytes(endIndex - buffer.readerIndex());
     }
 
     public int readBytes(GatheringByteChannel out, int length)
@@ -274,9 +291,9 @@ class ReplayingDecoderBuffer implements ChannelBuffer {
             ChannelBufferIndexFinder endIndexFinder) {
         int endIndex = buffer.indexOf(buffer.readerIndex(), buffer.writerIndex(), endIndexFinder);
         if (endIndex < 0) {
-            throw REPLAY;
+            replay(buffer.writerIndex() + 1);
         }
-        return readSlice(endIndex);
+        return readSlice(endIndex - buffer.readerIndex());
     }
 
     public ChannelBuffer readSlice(int length) {
@@ -407,7 +424,7 @@ class ReplayingDecoderBuffer implements ChannelBuffer {
         int oldReaderIndex = buffer.readerIndex();
         int newReaderIndex = buffer.indexOf(oldReaderIndex, buffer.writerIndex(), firstIndexFinder);
         if (newReaderIndex < 0) {
-            throw REPLAY;
+            replay(buffer.writerIndex() + 1);
         }
         buffer.readerIndex(newReaderIndex);
         return newReaderIndex - oldReaderIndex;
@@ -549,24 +566,39 @@ class ReplayingDecoderBuffer implements ChannelBuffer {
         reject();
     }
 
+    /**
+     * Returns the {@code writerIndex} the underlying buffer needs to reach
+     * before the operation which raised the last {@link ReplayError} can
+     * succeed.  The value is only a lower bound because the decoder might
+     * request even more data once the operation succeeds.
+     */
+    int requiredWriterIndex() {
+        return requiredWriterIndex;
+    }
+
     private void checkIndex(int index) {
-        if (index > buffer.writerIndex()) {
-            throw REPLAY;
+        if (index >= buffer.writerIndex()) {
+            replay(index + 1);
         }
     }
 
     private void checkIndex(int index, int length) {
         if (index + length > buffer.writerIndex()) {
-            throw REPLAY;
+            replay(index + length);
         }
     }
 
     private void checkReadableBytes(int readableBytes) {
         if (buffer.readableBytes() < readableBytes) {
-            throw REPLAY;
+            replay(buffer.readerIndex() + readableBytes);
         }
     }
 
+    private void replay(int requiredWriterIndex) {
+        this.requiredWriterIndex = requiredWriterIndex;
+        throw REPLAY;
+    }
+
     private void reject() {
         throw new UnsupportedOperationException(
                 "Unsupported in " + ReplayingDecoder.class.getSimpleName());
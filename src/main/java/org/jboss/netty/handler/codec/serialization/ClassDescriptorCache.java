@@ -0,0 +1,134 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.codec.serialization;
+
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the class descriptors read by a {@link CompactObjectInputStream}.
+ * It keeps the classes defined by the remote {@link ClassNameDictionary} by
+ * their IDs, and a bounded number of recently resolved classes by their
+ * names, so that {@link Class#forName(String, boolean, ClassLoader)} and
+ * {@link ObjectStreamClass#lookup(Class)} are not called for every object.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ */
+final class ClassDescriptorCache {
+
+    private static final int MAX_RECENT_CLASSES = 256;
+
+    private final ClassLoader classLoader;
+    private final List<String> names = new ArrayList<String>();
+    private final List<ObjectStreamClass> descriptors = new ArrayList<ObjectStreamClass>();
+    private final Map<String, ObjectStreamClass> recentDescriptors =
+        new LinkedHashMap<String, ObjectStreamClass>(16, 0.75f, true) {
+            private static final long serialVersionUID = -4813016419522208946L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, ObjectStreamClass> eldest) {
+                return size() > MAX_RECENT_CLASSES;
+            }
+        };
+
+    /**
+     * Creates a new cache.
+     *
+     * @param classLoader  the {@link ClassLoader} which loads the classes,
+     *                     or {@code null} to use the context class loader
+     *                     of the current thread
+     */
+    ClassDescriptorCache(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Returns the descriptor of the class with the specified name.
+     */
+    ObjectStreamClass lookup(String className) throws ClassNotFoundException {
+        ObjectStreamClass desc = recentDescriptors.get(className);
+        if (desc == null) {
+            desc = resolve(className);
+            recentDescriptors.put(className, desc);
+        }
+        return desc;
+    }
+
+    /**
+     * Assigns the next ID to the class with the specified name and returns
+     * its descriptor.
+     */
+    ObjectStreamClass define(String className)
+            throws StreamCorruptedException, ClassNotFoundException {
+        int id = names.size();
+        if (id >= CompactObjectOutputStream.MAX_CACHED_CLASSES) {
+            throw new StreamCorruptedException(
+                    "too many cached classes: " + (id + 1) +
+                    " (max: " + CompactObjectOutputStream.MAX_CACHED_CLASSES + ')');
+        }
+
+        // Define the ID first so that the cache stays in sync with the
+        // remote peer even if the class can not be loaded.
+        names.add(className);
+        descriptors.add(null);
+        return get(id);
+    }
+
+    /**
+     * Returns the descriptor of the class with the specified ID.
+     */
+    ObjectStreamClass get(int id)
+            throws StreamCorruptedException, ClassNotFoundException {
+        if (id < 0 || id >= names.size()) {
+            throw new StreamCorruptedException("unknown class ID: " + id);
+        }
+
+        ObjectStreamClass desc = descriptors.get(id);
+        if (desc == null) {
+            desc = lookup(names.get(id));
+            descriptors.set(id, desc);
+        }
+        return desc;
+    }
+
+    private ObjectStreamClass resolve(String className) throws ClassNotFoundException {
+        Class<?> clazz;
+        if (classLoader == null) {
+            clazz = Class.forName(
+                    className, true,
+                    Thread.currentThread().getContextClassLoader());
+        } else {
+            clazz = Class.forName(className, true, classLoader);
+        }
+        return ObjectStreamClass.lookup(clazz);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.codec.serialization;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns an integer ID to each class written by a
+ * {@link CompactObjectOutputStream} so that the class name is sent only once
+ * per connection.  The IDs assigned while an object is being serialized are
+ * discarded by {@link #rollback()} if the object was not sent, so that the
+ * dictionary of the remote peer ({@link ClassDescriptorCache}) stays in sync.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ */
+final class ClassNameDictionary {
+
+    private final Map<Class<?>, Integer> ids = new HashMap<Class<?>, Integer>();
+    private final List<Class<?>> uncommitted = new ArrayList<Class<?>>();
+
+    /**
+     * Returns the ID of the specified class, or {@code -1} if no ID was
+     * assigned yet.
+     */
+    int get(Class<?> clazz) {
+        Integer id = ids.get(clazz);
+        if (id == null) {
+            return -1;
+        }
+        return id.intValue();
+    }
+
+    /**
+     * Assigns the next ID to the specified class.
+     *
+     * @return {@code false} if the dictionary is full
+     */
+    boolean add(Class<?> clazz) {
+        int id = ids.size();
+        if (id >= CompactObjectOutputStream.MAX_CACHED_CLASSES) {
+            return false;
+        }
+        ids.put(clazz, Integer.valueOf(id));
+        uncommitted.add(clazz);
+        return true;
+    }
+
+    /**
+     * Makes the IDs assigned since the last commit permanent.
+     */
+    void commit() {
+        uncommitted.clear();
+    }
+
+    /**
+     * Discards the IDs assigned since the last commit.
+     */
+    void rollback() {
+        for (Class<?> clazz: uncommitted) {
+            ids.remove(clazz);
+        }
+        uncommitted.clear();
+    }
+}
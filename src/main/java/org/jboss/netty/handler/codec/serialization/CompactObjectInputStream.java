@@ -39,14 +39,22 @@ import java.io.StreamCorruptedException;
 class CompactObjectInputStream extends ObjectInputStream {
 
     private final ClassLoader classLoader;
+    private final ClassDescriptorCache classCache;
 
     CompactObjectInputStream(InputStream in) throws IOException {
         this(in, null);
     }
 
     CompactObjectInputStream(InputStream in, ClassLoader classLoader) throws IOException {
+        this(in, classLoader, new ClassDescriptorCache(classLoader));
+    }
+
+    CompactObjectInputStream(
+            InputStream in, ClassLoader classLoader,
+            ClassDescriptorCache classCache) throws IOException {
         super(in);
         this.classLoader = classLoader;
+        this.classCache = classCache;
     }
 
     @Override
@@ -70,16 +78,11 @@ class CompactObjectInputStream extends ObjectInputStream {
         case CompactObjectOutputStream.TYPE_PRIMITIVE:
             return super.readClassDescriptor();
         case CompactObjectOutputStream.TYPE_NON_PRIMITIVE:
-            String className = readUTF();
-            Class<?> clazz;
-            if (classLoader == null) {
-                clazz = Class.forName(
-                        className, true,
-                        Thread.currentThread().getContextClassLoader());
-            } else {
-                clazz = Class.forName(className, true, classLoader);
-            }
-            return ObjectStreamClass.lookup(clazz);
+            return classCache.lookup(readUTF());
+        case CompactObjectOutputStream.TYPE_NEW_CACHED:
+            return classCache.define(readUTF());
+        case CompactObjectOutputStream.TYPE_CACHED:
+            return classCache.get(readVarint());
         default:
             throw new StreamCorruptedException(
                     "Unexpected class descriptor type: " + type);
@@ -88,6 +91,12 @@ class CompactObjectInputStream extends ObjectInputStream {
 
     @Override
     protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+        // The descriptors from the cache are bound to the local class already.
+        Class<?> clazz = desc.forClass();
+        if (clazz != null) {
+            return clazz;
+        }
+
         String name = desc.getName();
         try {
             return Class.forName(name, false, classLoader);
@@ -95,4 +104,19 @@ class CompactObjectInputStream extends ObjectInputStream {
             return super.resolveClass(desc);
         }
     }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("malformed class ID");
+    }
 }
@@ -38,9 +38,23 @@ class CompactObjectOutputStream extends ObjectOutputStream {
 
     static final int TYPE_PRIMITIVE = 0;
     static final int TYPE_NON_PRIMITIVE = 1;
+    static final int TYPE_NEW_CACHED = 2;
+    static final int TYPE_CACHED = 3;
+
+    /**
+     * The maximum number of classes a connection can assign an ID to.
+     */
+    static final int MAX_CACHED_CLASSES = 1024;
+
+    private final ClassNameDictionary dictionary;
 
     CompactObjectOutputStream(OutputStream out) throws IOException {
+        this(out, null);
+    }
+
+    CompactObjectOutputStream(OutputStream out, ClassNameDictionary dictionary) throws IOException {
         super(out);
+        this.dictionary = dictionary;
     }
 
     @Override
@@ -50,12 +64,33 @@ class CompactObjectOutputStream extends ObjectOutputStream {
 
     @Override
     protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
-        if (desc.forClass().isPrimitive()) {
+        Class<?> clazz = desc.forClass();
+        if (clazz.isPrimitive()) {
             write(TYPE_PRIMITIVE);
             super.writeClassDescriptor(desc);
-        } else {
+        } else if (dictionary == null) {
             write(TYPE_NON_PRIMITIVE);
             writeUTF(desc.getName());
+        } else {
+            int id = dictionary.get(clazz);
+            if (id >= 0) {
+                write(TYPE_CACHED);
+                writeVarint(id);
+            } else if (dictionary.add(clazz)) {
+                write(TYPE_NEW_CACHED);
+                writeUTF(desc.getName());
+            } else {
+                write(TYPE_NON_PRIMITIVE);
+                writeUTF(desc.getName());
+            }
+        }
+    }
+
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            write(value & 0x7F | 0x80);
+            value >>>= 7;
         }
+        write(value);
     }
 }
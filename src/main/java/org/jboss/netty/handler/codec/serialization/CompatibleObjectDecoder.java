@@ -48,6 +48,17 @@ import org.jboss.netty.util.SwitchableInputStream;
  * Please use {@link ObjectEncoder} and {@link ObjectDecoder} if you are not
  * required to keep the interoperability with the standard object streams.
  *
+ * <h3>Incremental decoding</h3>
+ * <p>
+ * If incremental decoding is turned on, this decoder scans the received
+ * bytes until the end of the next top-level object and calls
+ * {@link ObjectInputStream#readObject()} only after the whole object has
+ * been received.  Therefore, an object is deserialized only once however
+ * many packets it was split into, while the {@link ObjectInputStream} reads
+ * a partially received object repetitively otherwise.  The scanner
+ * understands the standard stream format only, hence the incremental
+ * decoding must not be turned on if {@link #newObjectInputStream(InputStream)}
+ * returns a stream which reads a customized format.
  *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Trustin Lee (tlee@redhat.com)
@@ -59,12 +70,27 @@ public class CompatibleObjectDecoder extends ReplayingDecoder<CompatibleObjectDe
 
     private final SwitchableInputStream bin = new SwitchableInputStream();
     private volatile ObjectInputStream oin;
+    private volatile ObjectStreamScanner scanner;
 
     /**
-     * Creates a new decoder.
+     * Creates a new decoder which does not decode incrementally.
      */
     public CompatibleObjectDecoder() {
-        super(CompatibleObjectDecoderState.READ_HEADER);
+        this(false);
+    }
+
+    /**
+     * Creates a new decoder.
+     *
+     * @param incremental
+     *        {@code true} if an object should be deserialized only after it
+     *        has been received completely
+     */
+    public CompatibleObjectDecoder(boolean incremental) {
+        super(CompatibleObjectDecoderState.READ_HEADER, incremental);
+        if (incremental) {
+            scanner = new ObjectStreamScanner();
+        }
     }
 
     /**
@@ -79,19 +105,44 @@ public class CompatibleObjectDecoder extends ReplayingDecoder<CompatibleObjectDe
     @Override
     protected Object decode(
             ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer, CompatibleObjectDecoderState state) throws Exception {
-        bin.switchStream(new ChannelBufferInputStream(buffer));
-
         switch (state) {
         case READ_HEADER:
+            bin.switchStream(new ChannelBufferInputStream(buffer));
             oin = newObjectInputStream(bin);
             checkpoint(CompatibleObjectDecoderState.READ_OBJECT);
         case READ_OBJECT:
-            return oin.readObject();
+            return readObject(buffer);
         default:
             throw new IllegalStateException("Unknown state: " + state);
         }
     }
 
+    private Object readObject(ChannelBuffer buffer) throws Exception {
+        ObjectStreamScanner scanner = this.scanner;
+        int length = ObjectStreamScanner.UNKNOWN_LENGTH;
+        if (scanner != null) {
+            length = scanner.scan(buffer);
+            if (length == ObjectStreamScanner.UNKNOWN_LENGTH) {
+                // The scanner can not follow the stream anymore.
+                this.scanner = null;
+            }
+        }
+
+        if (length == ObjectStreamScanner.UNKNOWN_LENGTH) {
+            bin.switchStream(new ChannelBufferInputStream(buffer));
+            return oin.readObject();
+        }
+
+        int endIndex = buffer.readerIndex() + length;
+        bin.switchStream(new ChannelBufferInputStream(buffer, length));
+        try {
+            return oin.readObject();
+        } finally {
+            // Skip the rest of the object if it failed to be deserialized.
+            buffer.readerIndex(endIndex);
+        }
+    }
+
     @Override
     protected Object decodeLast(ChannelHandlerContext ctx, Channel channel,
             ChannelBuffer buffer, CompatibleObjectDecoderState state)
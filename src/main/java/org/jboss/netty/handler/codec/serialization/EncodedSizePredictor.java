@@ -0,0 +1,73 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.codec.serialization;
+
+/**
+ * Predicts the byte length of the serialized form of the next object of a
+ * certain class from the lengths of the previous ones.  It immediately
+ * follows an object which was longer than the prediction, and halves the
+ * prediction if two objects in a row used less than half of it.
+ * <p>
+ * The prediction is a hint only, so concurrent updates are not synchronized.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ */
+final class EncodedSizePredictor {
+
+    private static final int MAXIMUM = 1048576;
+
+    private final int minimum;
+    private volatile int nextSize;
+    private volatile boolean decreaseNow;
+
+    EncodedSizePredictor(int initial) {
+        minimum = Math.min(initial, 64);
+        nextSize = initial;
+    }
+
+    int nextSize() {
+        return nextSize;
+    }
+
+    void previousSize(int size) {
+        int nextSize = this.nextSize;
+        if (size > nextSize) {
+            // Leave some room for the objects which are a little longer.
+            this.nextSize = Math.min(size + (size >>> 3), MAXIMUM);
+            decreaseNow = false;
+        } else if (size <= nextSize >>> 1) {
+            if (decreaseNow) {
+                this.nextSize = Math.max(nextSize >>> 1, minimum);
+                decreaseNow = false;
+            } else {
+                decreaseNow = true;
+            }
+        } else {
+            decreaseNow = false;
+        }
+    }
+}
@@ -44,6 +44,10 @@ import org.jboss.netty.handler.codec.frame.FrameDecoder;
  * object streams, it is recommended to use {@link ObjectEncoder} and
  * {@link ObjectDecoder} rather than {@link CompatibleObjectEncoder} and
  * {@link CompatibleObjectDecoder}.
+ * <p>
+ * If the remote {@link ObjectEncoder} writes some messages with the
+ * {@link ObjectSerializer}s of an {@link ObjectSerializerRegistry}, this
+ * decoder must be created with the same registry.
  *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Trustin Lee (tlee@redhat.com)
@@ -54,8 +58,16 @@ import org.jboss.netty.handler.codec.frame.FrameDecoder;
  */
 public class ObjectDecoder extends FrameDecoder {
 
+    /**
+     * The first byte of a message written by an {@link ObjectSerializer}.
+     * The Java serialization always writes {@code STREAM_VERSION} instead.
+     */
+    static final byte TYPE_REGISTERED = 0;
+
     private final int maxObjectSize;
     private final ClassLoader classLoader;
+    private final ClassDescriptorCache classCache;
+    private final ObjectSerializerRegistry registry;
 
     /**
      * Creates a new decoder whose maximum object size is {@code 1048576}
@@ -90,12 +102,33 @@ public class ObjectDecoder extends FrameDecoder {
      *                       of the serialized object
      */
     public ObjectDecoder(int maxObjectSize, ClassLoader classLoader) {
+        this(maxObjectSize, classLoader, null);
+    }
+
+    /**
+     * Creates a new decoder with the specified maximum object size.
+     *
+     * @param maxObjectSize  the maximum byte length of the serialized object.
+     *                       if the length of the received object is greater
+     *                       than this value, {@link StreamCorruptedException}
+     *                       will be raised.
+     * @param classLoader    the {@link ClassLoader} which will load the class
+     *                       of the serialized object
+     * @param registry       the serializers which read the messages of the
+     *                       registered classes, or {@code null} if the
+     *                       remote peer uses the Java serialization only
+     */
+    public ObjectDecoder(
+            int maxObjectSize, ClassLoader classLoader,
+            ObjectSerializerRegistry registry) {
         if (maxObjectSize <= 0) {
             throw new IllegalArgumentException("maxObjectSize: " + maxObjectSize);
         }
 
         this.maxObjectSize = maxObjectSize;
         this.classLoader = classLoader;
+        classCache = new ClassDescriptorCache(classLoader);
+        this.registry = registry;
     }
 
     @Override
@@ -119,7 +152,49 @@ public class ObjectDecoder extends FrameDecoder {
         }
 
         buffer.skipBytes(4);
+        ChannelBuffer frame = buffer.readSlice(dataLen);
+        if (registry != null && frame.getByte(0) == TYPE_REGISTERED) {
+            frame.skipBytes(1);
+            return deserialize(frame);
+        }
+
         return new CompactObjectInputStream(
-                new ChannelBufferInputStream(buffer, dataLen), classLoader).readObject();
+                new ChannelBufferInputStream(frame),
+                classLoader, classCache).readObject();
+    }
+
+    private Object deserialize(ChannelBuffer frame) throws Exception {
+        int id = readVarint(frame);
+        ObjectSerializerRegistry.Registration r = registry.get(id);
+        if (r == null) {
+            throw new StreamCorruptedException("unknown serializer ID: " + id);
+        }
+
+        Object msg = r.serializer.deserialize(frame);
+        if (msg == null) {
+            throw new StreamCorruptedException(
+                    "serializer " + id + " returned null");
+        }
+        if (frame.readable()) {
+            throw new StreamCorruptedException(
+                    "serializer " + id + " left " + frame.readableBytes() +
+                    " byte(s) unread");
+        }
+        return msg;
+    }
+
+    private static int readVarint(ChannelBuffer in) throws StreamCorruptedException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!in.readable()) {
+                throw new StreamCorruptedException("truncated serializer ID");
+            }
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("malformed serializer ID");
     }
 }
@@ -22,6 +22,7 @@
  */
 package org.jboss.netty.handler.codec.serialization;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -44,6 +45,7 @@ public class ObjectDecoderInputStream extends InputStream implements
     private final DataInputStream in;
     private final ClassLoader classLoader;
     private final int maxObjectSize;
+    private final ClassDescriptorCache classCache;
 
     /**
      * Creates a new {@link ObjectInput}.
@@ -113,6 +115,7 @@ public class ObjectDecoderInputStream extends InputStream implements
         }
         this.classLoader = classLoader;
         this.maxObjectSize = maxObjectSize;
+        classCache = new ClassDescriptorCache(classLoader);
     }
 
     public Object readObject() throws ClassNotFoundException, IOException {
@@ -128,7 +131,8 @@ public class ObjectDecoderInputStream extends InputStream implements
         byte[] data = new byte[dataLen];
         readFully(data);
 
-        return new CompactObjectInputStream(in, classLoader).readObject();
+        return new CompactObjectInputStream(
+                new ByteArrayInputStream(data), classLoader, classCache).readObject();
     }
 
     @Override
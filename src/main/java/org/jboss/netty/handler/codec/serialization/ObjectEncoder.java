@@ -26,14 +26,22 @@ import static org.jboss.netty.buffer.ChannelBuffers.*;
 import static org.jboss.netty.channel.Channels.*;
 
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelDownstreamHandler;
 import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.DefaultMessageEvent;
 import org.jboss.netty.channel.MessageEvent;
 
 /**
@@ -49,6 +57,32 @@ import org.jboss.netty.channel.MessageEvent;
  * {@link ObjectDecoder} rather than {@link CompatibleObjectEncoder} and
  * {@link CompatibleObjectDecoder}.
  *
+ * <h3>Caching class names</h3>
+ * <p>
+ * By default, the name of the class of every serialized object is written
+ * in full.  If the encoder is created with {@code cacheClassNames} set to
+ * {@code true}, the name of a class is written only when the class is sent
+ * for the first time over the connection, and a short ID is written
+ * afterwards.  The remote peer must use the {@link ObjectDecoder} or the
+ * {@link ObjectDecoderInputStream} of this version or later to decode
+ * the cached class names.
+ *
+ * <h3>Buffer allocation</h3>
+ * <p>
+ * The encoder learns the length of the serialized form of each message
+ * class, and allocates the buffer of the next message of the same class
+ * accordingly.  The specified {@code estimatedLength} is used only for the
+ * classes which have not been encoded yet.  The object stream is created
+ * once per connection and is reset after each message, so that its
+ * internal buffers and tables are reused.
+ *
+ * <h3>Custom serializers</h3>
+ * <p>
+ * If the encoder is created with an {@link ObjectSerializerRegistry}, the
+ * messages whose class has a registered {@link ObjectSerializer} are written
+ * by the serializer rather than the Java serialization.  The remote peer
+ * must use an {@link ObjectDecoder} with the same registry.
+ *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Trustin Lee (tlee@redhat.com)
  *
@@ -57,10 +91,18 @@ import org.jboss.netty.channel.MessageEvent;
  * @apiviz.landmark
  */
 @ChannelPipelineCoverage("all")
-public class ObjectEncoder implements ChannelDownstreamHandler {
+public class ObjectEncoder implements ChannelDownstreamHandler, ChannelUpstreamHandler {
     private static final byte[] LENGTH_PLACEHOLDER = new byte[4];
 
+    private static final int MAX_PREDICTED_CLASSES = 256;
+
     private final int estimatedLength;
+    private final boolean cacheClassNames;
+    private final ObjectSerializerRegistry registry;
+    private final ConcurrentMap<Channel, ChannelOutput> outputs =
+        new ConcurrentHashMap<Channel, ChannelOutput>();
+    private final ConcurrentMap<Class<?>, EncodedSizePredictor> predictors =
+        new ConcurrentHashMap<Class<?>, EncodedSizePredictor>();
 
     /**
      * Creates a new encoder with the estimated length of 512 bytes.
@@ -81,11 +123,54 @@ public class ObjectEncoder implements ChannelDownstreamHandler {
      *        cost, please specify the properly estimated value.
      */
     public ObjectEncoder(int estimatedLength) {
+        this(estimatedLength, false);
+    }
+
+    /**
+     * Creates a new encoder.
+     *
+     * @param estimatedLength
+     *        the estimated byte length of the serialized form of an object.
+     *        If the length of the serialized form exceeds this value, the
+     *        internal buffer will be expanded automatically at the cost of
+     *        memory bandwidth.  If this value is too big, it will also waste
+     *        memory bandwidth.  To avoid unnecessary memory copy or allocation
+     *        cost, please specify the properly estimated value.
+     * @param cacheClassNames
+     *        {@code true} if the name of a class should be written only once
+     *        per connection
+     */
+    public ObjectEncoder(int estimatedLength, boolean cacheClassNames) {
+        this(estimatedLength, cacheClassNames, null);
+    }
+
+    /**
+     * Creates a new encoder.
+     *
+     * @param estimatedLength
+     *        the estimated byte length of the serialized form of an object.
+     *        If the length of the serialized form exceeds this value, the
+     *        internal buffer will be expanded automatically at the cost of
+     *        memory bandwidth.  If this value is too big, it will also waste
+     *        memory bandwidth.  To avoid unnecessary memory copy or allocation
+     *        cost, please specify the properly estimated value.
+     * @param cacheClassNames
+     *        {@code true} if the name of a class should be written only once
+     *        per connection
+     * @param registry
+     *        the serializers which write the messages of the registered
+     *        classes, or {@code null} to use the Java serialization only
+     */
+    public ObjectEncoder(
+            int estimatedLength, boolean cacheClassNames,
+            ObjectSerializerRegistry registry) {
         if (estimatedLength < 0) {
             throw new IllegalArgumentException(
                     "estimatedLength: " + estimatedLength);
         }
         this.estimatedLength = estimatedLength;
+        this.cacheClassNames = cacheClassNames;
+        this.registry = registry;
     }
 
     public void handleDownstream(
@@ -96,17 +181,156 @@ public class ObjectEncoder implements ChannelDownstreamHandler {
         }
 
         MessageEvent e = (MessageEvent) evt;
-        ChannelBufferOutputStream bout =
-            new ChannelBufferOutputStream(dynamicBuffer(estimatedLength));
-        bout.write(LENGTH_PLACEHOLDER);
-        ObjectOutputStream oout = new CompactObjectOutputStream(bout);
-        oout.writeObject(e.getMessage());
-        oout.flush();
-        oout.close();
-
-        ChannelBuffer msg = bout.buffer();
+        ChannelOutput output = getOutput(e.getChannel());
+        ChannelBuffer msg;
+        synchronized (output) {
+            msg = encode(output.out, e.getMessage());
+            if (cacheClassNames) {
+                // The IDs must arrive at the remote peer in the order they
+                // were assigned, so the messages are queued in that order.
+                output.pendingWrites.offer(new DefaultMessageEvent(
+                        e.getChannel(), e.getFuture(), msg, e.getRemoteAddress()));
+            }
+        }
+
+        if (cacheClassNames) {
+            flushPendingWrites(context, output);
+        } else {
+            write(context, e.getChannel(), e.getFuture(), msg, e.getRemoteAddress());
+        }
+    }
+
+    private static void flushPendingWrites(
+            ChannelHandlerContext context, ChannelOutput output) {
+        if (output.flushRequests.getAndIncrement() != 0) {
+            // Another thread is flushing - it will send our message too.
+            return;
+        }
+
+        int requests = 1;
+        do {
+            for (;;) {
+                MessageEvent e = output.pendingWrites.poll();
+                if (e == null) {
+                    break;
+                }
+                context.sendDownstream(e);
+            }
+            requests = output.flushRequests.addAndGet(-requests);
+        } while (requests != 0);
+    }
+
+    public void handleUpstream(
+            ChannelHandlerContext context, ChannelEvent evt) throws Exception {
+        if (evt instanceof ChannelStateEvent) {
+            ChannelStateEvent e = (ChannelStateEvent) evt;
+            if (e.getState() == ChannelState.OPEN &&
+                Boolean.FALSE.equals(e.getValue())) {
+                outputs.remove(e.getChannel());
+            }
+        }
+        context.sendUpstream(evt);
+    }
+
+    private ChannelOutput getOutput(Channel channel) {
+        if (!channel.isOpen()) {
+            return newOutput();
+        }
+
+        ChannelOutput out = outputs.get(channel);
+        if (out == null) {
+            out = newOutput();
+            ChannelOutput oldOut = outputs.putIfAbsent(channel, out);
+            if (oldOut != null) {
+                out = oldOut;
+            } else if (!channel.isOpen()) {
+                // The channel has been closed meanwhile.
+                outputs.remove(channel);
+            }
+        }
+        return out;
+    }
+
+    private ChannelOutput newOutput() {
+        if (cacheClassNames) {
+            return new ChannelOutput(
+                    new ReusableObjectOutputStream(new ClassNameDictionary()));
+        } else {
+            return new ChannelOutput(new ReusableObjectOutputStream(null));
+        }
+    }
+
+    private ChannelBuffer encode(
+            ReusableObjectOutputStream out, Object message) throws Exception {
+        EncodedSizePredictor predictor = getPredictor(message);
+        ChannelBuffer msg;
+        if (predictor == null) {
+            msg = dynamicBuffer(estimatedLength);
+        } else {
+            msg = dynamicBuffer(predictor.nextSize());
+        }
+
+        msg.writeBytes(LENGTH_PLACEHOLDER);
+        ObjectSerializerRegistry.Registration r = null;
+        if (registry != null && message != null) {
+            r = registry.get(message.getClass());
+        }
+        if (r == null) {
+            out.writeObject(message, msg);
+        } else {
+            msg.writeByte(ObjectDecoder.TYPE_REGISTERED);
+            writeVarint(msg, r.id);
+            r.serializer.serialize(message, msg);
+        }
         msg.setInt(0, msg.writerIndex() - 4);
 
-        write(context, e.getChannel(), e.getFuture(), msg, e.getRemoteAddress());
+        if (predictor != null) {
+            predictor.previousSize(msg.writerIndex());
+        }
+        return msg;
+    }
+
+    private EncodedSizePredictor getPredictor(Object message) {
+        if (message == null) {
+            return null;
+        }
+
+        Class<?> type = message.getClass();
+        EncodedSizePredictor predictor = predictors.get(type);
+        if (predictor == null) {
+            if (predictors.size() >= MAX_PREDICTED_CLASSES) {
+                return null;
+            }
+            predictor = new EncodedSizePredictor(estimatedLength);
+            EncodedSizePredictor oldPredictor = predictors.putIfAbsent(type, predictor);
+            if (oldPredictor != null) {
+                predictor = oldPredictor;
+            }
+        }
+        return predictor;
+    }
+
+    private static void writeVarint(ChannelBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((byte) value);
+    }
+
+    /**
+     * The object stream of a channel.  The encoded messages are sent
+     * downstream by one thread at a time after the lock of this object is
+     * released, in the order they were queued while it was locked.
+     */
+    private static final class ChannelOutput {
+        final ReusableObjectOutputStream out;
+        final Queue<MessageEvent> pendingWrites =
+            new ConcurrentLinkedQueue<MessageEvent>();
+        final AtomicInteger flushRequests = new AtomicInteger();
+
+        ChannelOutput(ReusableObjectOutputStream out) {
+            this.out = out;
+        }
     }
 }
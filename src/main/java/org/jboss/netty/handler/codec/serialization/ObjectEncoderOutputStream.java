@@ -25,11 +25,9 @@ package org.jboss.netty.handler.codec.serialization;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
 
 /**
@@ -47,6 +45,7 @@ public class ObjectEncoderOutputStream extends OutputStream implements
 
     private final DataOutputStream out;
     private final int estimatedLength;
+    private final ReusableObjectOutputStream objectOut;
 
     /**
      * Creates a new {@link ObjectOutput} with the estimated length of 512
@@ -76,6 +75,31 @@ public class ObjectEncoderOutputStream extends OutputStream implements
      *        cost, please specify the properly estimated value.
      */
     public ObjectEncoderOutputStream(OutputStream out, int estimatedLength) {
+        this(out, estimatedLength, false);
+    }
+
+    /**
+     * Creates a new {@link ObjectOutput}.
+     *
+     * @param out
+     *        the {@link OutputStream} where the serialized form will be
+     *        written out
+     *
+     * @param estimatedLength
+     *        the estimated byte length of the serialized form of an object.
+     *        If the length of the serialized form exceeds this value, the
+     *        internal buffer will be expanded automatically at the cost of
+     *        memory bandwidth.  If this value is too big, it will also waste
+     *        memory bandwidth.  To avoid unnecessary memory copy or allocation
+     *        cost, please specify the properly estimated value.
+     *
+     * @param cacheClassNames
+     *        {@code true} if the name of a class should be written only once
+     *        per stream.  The remote peer must be able to decode the cached
+     *        class names.
+     */
+    public ObjectEncoderOutputStream(
+            OutputStream out, int estimatedLength, boolean cacheClassNames) {
         if (out == null) {
             throw new NullPointerException("out");
         }
@@ -89,16 +113,17 @@ public class ObjectEncoderOutputStream extends OutputStream implements
             this.out = new DataOutputStream(out);
         }
         this.estimatedLength = estimatedLength;
+        if (cacheClassNames) {
+            objectOut = new ReusableObjectOutputStream(new ClassNameDictionary());
+        } else {
+            objectOut = new ReusableObjectOutputStream(null);
+        }
     }
 
     public void writeObject(Object obj) throws IOException {
-        ChannelBufferOutputStream bout = new ChannelBufferOutputStream(ChannelBuffers.dynamicBuffer(estimatedLength));
-        ObjectOutputStream oout = new CompactObjectOutputStream(bout);
-        oout.writeObject(obj);
-        oout.flush();
-        oout.close();
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(estimatedLength);
+        objectOut.writeObject(obj, buffer);
 
-        ChannelBuffer buffer = bout.buffer();
         int objectSize = buffer.readableBytes();
         writeInt(objectSize);
         buffer.getBytes(0, this, objectSize);
@@ -0,0 +1,71 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.codec.serialization;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Writes an object of a certain class to a {@link ChannelBuffer} and reads
+ * it back, without the reflection and the class descriptors of the Java
+ * serialization.  A serializer is registered to an
+ * {@link ObjectSerializerRegistry}, which is then shared by the
+ * {@link ObjectEncoder} and the {@link ObjectDecoder} of both peers.
+ * <pre>
+ * public class PointSerializer implements ObjectSerializer&lt;Point&gt; {
+ *
+ *     public void serialize(Point p, ChannelBuffer out) {
+ *         out.writeInt(p.x);
+ *         out.writeInt(p.y);
+ *     }
+ *
+ *     public Point deserialize(ChannelBuffer in) {
+ *         return new Point(in.readInt(), in.readInt());
+ *     }
+ * }
+ * </pre>
+ * A serializer must be thread-safe because it is shared by all channels.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ * @param <T> the type of the serialized object
+ */
+public interface ObjectSerializer<T> {
+
+    /**
+     * Writes the specified object to the specified buffer.
+     */
+    void serialize(T object, ChannelBuffer out) throws Exception;
+
+    /**
+     * Reads an object from the specified buffer.  The readable bytes of the
+     * buffer are exactly the bytes written by
+     * {@link #serialize(Object, ChannelBuffer)}, and they must be read
+     * completely.
+     *
+     * @return the deserialized object, never {@code null}
+     */
+    T deserialize(ChannelBuffer in) throws Exception;
+}
@@ -0,0 +1,114 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.codec.serialization;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A set of {@link ObjectSerializer}s which {@link ObjectEncoder} and
+ * {@link ObjectDecoder} use instead of the Java serialization.  Each
+ * serializer is registered with the class it serializes and an ID which is
+ * written in place of the class name:
+ * <pre>
+ * ObjectSerializerRegistry registry = new ObjectSerializerRegistry();
+ * registry.register(1, Point.class, new PointSerializer());
+ *
+ * pipeline.addLast("decoder", new ObjectDecoder(1048576, null, registry));
+ * pipeline.addLast("encoder", new ObjectEncoder(512, false, registry));
+ * </pre>
+ * Both peers must register the same serializers with the same IDs.
+ * <p>
+ * A serializer is looked up by the exact class of the written message;
+ * the serializer of a superclass or an interface is not used.  Messages
+ * without a serializer, and all the objects they refer to, are written
+ * with the Java serialization as usual.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ * @apiviz.has org.jboss.netty.handler.codec.serialization.ObjectSerializer oneway - - serializes with
+ */
+public class ObjectSerializerRegistry {
+
+    private final ConcurrentMap<Class<?>, Registration> types =
+        new ConcurrentHashMap<Class<?>, Registration>();
+    private final ConcurrentMap<Integer, Registration> ids =
+        new ConcurrentHashMap<Integer, Registration>();
+
+    /**
+     * Registers the serializer of the specified class.
+     *
+     * @param id          the non-negative ID which identifies the class on
+     *                    the wire
+     * @param type        the class of the serialized objects
+     * @param serializer  the serializer
+     *
+     * @throws IllegalArgumentException
+     *         if the specified ID or class has been registered already
+     */
+    public synchronized <T> void register(
+            int id, Class<T> type, ObjectSerializer<T> serializer) {
+        if (type == null) {
+            throw new NullPointerException("type");
+        }
+        if (serializer == null) {
+            throw new NullPointerException("serializer");
+        }
+        if (id < 0) {
+            throw new IllegalArgumentException("id: " + id);
+        }
+        if (ids.containsKey(id)) {
+            throw new IllegalArgumentException("id already registered: " + id);
+        }
+        if (types.containsKey(type)) {
+            throw new IllegalArgumentException(
+                    "type already registered: " + type.getName());
+        }
+
+        @SuppressWarnings("unchecked")
+        Registration r = new Registration(id, (ObjectSerializer<Object>) serializer);
+        types.put(type, r);
+        ids.put(id, r);
+    }
+
+    Registration get(Class<?> type) {
+        return types.get(type);
+    }
+
+    Registration get(int id) {
+        return ids.get(id);
+    }
+
+    static final class Registration {
+        final int id;
+        final ObjectSerializer<Object> serializer;
+
+        Registration(int id, ObjectSerializer<Object> serializer) {
+            this.id = id;
+            this.serializer = serializer;
+        }
+    }
+}
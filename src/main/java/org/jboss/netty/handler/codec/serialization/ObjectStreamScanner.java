@@ -0,0 +1,420 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.codec.serialization;
+
+import static java.io.ObjectStreamConstants.*;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Finds the end of the next top-level object in a standard Java
+ * serialization stream without deserializing it, so that
+ * {@link CompatibleObjectDecoder} can call {@link ObjectInputStream#readObject()}
+ * only when the whole object has been received.
+ * <p>
+ * The scanner follows the grammar of the
+ * <a href="http://java.sun.com/javase/6/docs/platform/serialization/spec/protocol.html">Object
+ * Serialization Stream Protocol</a> and keeps its own handle table which
+ * mirrors the table of the {@link ObjectInputStream}, because the layout of
+ * an object depends on the class descriptors written before.  The class data
+ * written by a {@code writeObject} method is assumed to start with the
+ * fields written by {@link ObjectOutputStream#defaultWriteObject()} or
+ * {@link ObjectOutputStream#writeFields()}, as the specification requires.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ */
+final class ObjectStreamScanner {
+
+    /**
+     * Returned by {@link #scan(ChannelBuffer)} if the length of the next
+     * object can not be determined without deserializing it.
+     */
+    static final int UNKNOWN_LENGTH = -1;
+
+    /**
+     * The class descriptors by their handles.  The handles of the other
+     * objects are occupied by {@code null}s.
+     */
+    private List<ClassInfo> handles = new ArrayList<ClassInfo>();
+    private ChannelBuffer buffer;
+    private int index;
+
+    /**
+     * Returns the number of bytes from the {@code readerIndex} of the
+     * specified buffer to the end of the next top-level object, including
+     * the {@code TC_RESET}s which precede it.  If the object has not been
+     * received completely, the buffer fails with an out-of-bounds access
+     * and the state of this scanner is left unchanged.
+     *
+     * @return the length of the next object, or {@link #UNKNOWN_LENGTH}
+     */
+    int scan(ChannelBuffer buffer) throws StreamCorruptedException {
+        List<ClassInfo> oldHandles = handles;
+        int oldHandleCount = oldHandles.size();
+        this.buffer = buffer;
+        index = buffer.readerIndex();
+
+        boolean success = false;
+        try {
+            while (peekByte() == TC_RESET) {
+                index ++;
+                reset();
+            }
+            readContent();
+            success = true;
+            return index - buffer.readerIndex();
+        } catch (UnknownLengthException e) {
+            return UNKNOWN_LENGTH;
+        } finally {
+            this.buffer = null;
+            if (!success) {
+                handles = oldHandles;
+                oldHandles.subList(oldHandleCount, oldHandles.size()).clear();
+            }
+        }
+    }
+
+    private void readContent() throws StreamCorruptedException, UnknownLengthException {
+        byte tc = readByte();
+        switch (tc) {
+        case TC_NULL:
+            break;
+        case TC_REFERENCE:
+            lookup(readInt());
+            break;
+        case TC_CLASS:
+            readClassDesc();
+            assign(null);
+            break;
+        case TC_CLASSDESC:
+            readNonProxyDesc();
+            break;
+        case TC_PROXYCLASSDESC:
+            readProxyDesc();
+            break;
+        case TC_STRING:
+            skip(readUnsignedShort());
+            assign(null);
+            break;
+        case TC_LONGSTRING:
+            skip(readLong());
+            assign(null);
+            break;
+        case TC_ARRAY:
+            readArray();
+            break;
+        case TC_ENUM:
+            readClassDesc();
+            assign(null);
+            readString();
+            break;
+        case TC_OBJECT:
+            readOrdinaryObject();
+            break;
+        case TC_EXCEPTION:
+            // The writer has cleared its handle table.
+            reset();
+            readContent();
+            break;
+        case TC_BLOCKDATA:
+            skip(readUnsignedByte());
+            break;
+        case TC_BLOCKDATALONG:
+            skip(readInt());
+            break;
+        default:
+            throw new StreamCorruptedException(
+                    "invalid type code: " + Integer.toHexString(tc & 0xFF));
+        }
+    }
+
+    private ClassInfo readClassDesc() throws StreamCorruptedException, UnknownLengthException {
+        byte tc = readByte();
+        switch (tc) {
+        case TC_NULL:
+            return null;
+        case TC_REFERENCE:
+            ClassInfo desc = lookup(readInt());
+            if (desc == null) {
+                throw new StreamCorruptedException("not a class descriptor");
+            }
+            return desc;
+        case TC_CLASSDESC:
+            return readNonProxyDesc();
+        case TC_PROXYCLASSDESC:
+            return readProxyDesc();
+        default:
+            throw new StreamCorruptedException(
+                    "invalid class descriptor type code: " +
+                    Integer.toHexString(tc & 0xFF));
+        }
+    }
+
+    private ClassInfo readNonProxyDesc() throws StreamCorruptedException, UnknownLengthException {
+        ClassInfo desc = new ClassInfo();
+        assign(desc);
+
+        int nameLength = readUnsignedShort();
+        int nameIndex = index;
+        skip(nameLength);
+        if (nameLength >= 2 && buffer.getByte(nameIndex) == '[') {
+            desc.componentType = buffer.getByte(nameIndex + 1);
+        }
+
+        skip(8); // serialVersionUID
+        desc.flags = readByte();
+
+        int fieldCount = readShort();
+        for (int i = 0; i < fieldCount; i ++) {
+            byte type = readByte();
+            skip(readUnsignedShort()); // field name
+            int size = getPrimitiveSize(type);
+            if (size > 0) {
+                desc.primitiveBytes += size;
+            } else {
+                readString();
+                desc.objectFieldCount ++;
+            }
+        }
+
+        readAnnotation();
+        desc.superDesc = readClassDesc();
+        return desc;
+    }
+
+    private ClassInfo readProxyDesc() throws StreamCorruptedException, UnknownLengthException {
+        ClassInfo desc = new ClassInfo();
+        desc.flags = SC_SERIALIZABLE;
+        assign(desc);
+
+        int interfaceCount = readInt();
+        if (interfaceCount < 0) {
+            throw new StreamCorruptedException(
+                    "invalid interface count: " + interfaceCount);
+        }
+        for (int i = 0; i < interfaceCount; i ++) {
+            skip(readUnsignedShort());
+        }
+
+        readAnnotation();
+        desc.superDesc = readClassDesc();
+        return desc;
+    }
+
+    private void readArray() throws StreamCorruptedException, UnknownLengthException {
+        ClassInfo desc = readClassDesc();
+        if (desc == null || desc.componentType == 0) {
+            throw new StreamCorruptedException("not an array class descriptor");
+        }
+        assign(null);
+
+        int length = readInt();
+        if (length < 0) {
+            throw new StreamCorruptedException("invalid array length: " + length);
+        }
+
+        int size = getPrimitiveSize(desc.componentType);
+        if (size > 0) {
+            skip((long) length * size);
+        } else {
+            for (int i = 0; i < length; i ++) {
+                readContent();
+            }
+        }
+    }
+
+    private void readOrdinaryObject() throws StreamCorruptedException, UnknownLengthException {
+        ClassInfo desc = readClassDesc();
+        if (desc == null) {
+            throw new StreamCorruptedException("missing class descriptor");
+        }
+        assign(null);
+
+        if ((desc.flags & SC_EXTERNALIZABLE) != 0) {
+            if ((desc.flags & SC_BLOCK_DATA) == 0) {
+                // Written with PROTOCOL_VERSION_1 - only readExternal()
+                // knows where the object ends.
+                throw new UnknownLengthException();
+            }
+            readAnnotation();
+        } else {
+            readClassData(desc);
+        }
+    }
+
+    private void readClassData(ClassInfo desc) throws StreamCorruptedException, UnknownLengthException {
+        // The data of the superclasses come first.
+        if (desc.superDesc != null) {
+            readClassData(desc.superDesc);
+        }
+
+        skip(desc.primitiveBytes);
+        for (int i = 0; i < desc.objectFieldCount; i ++) {
+            readContent();
+        }
+        if ((desc.flags & SC_WRITE_METHOD) != 0) {
+            readAnnotation();
+        }
+    }
+
+    /**
+     * Skips the block data and the objects until {@code TC_ENDBLOCKDATA}.
+     */
+    private void readAnnotation() throws StreamCorruptedException, UnknownLengthException {
+        for (;;) {
+            if (peekByte() == TC_ENDBLOCKDATA) {
+                index ++;
+                return;
+            }
+            readContent();
+        }
+    }
+
+    private void readString() throws StreamCorruptedException {
+        byte tc = readByte();
+        switch (tc) {
+        case TC_NULL:
+            break;
+        case TC_REFERENCE:
+            lookup(readInt());
+            break;
+        case TC_STRING:
+            skip(readUnsignedShort());
+            assign(null);
+            break;
+        case TC_LONGSTRING:
+            skip(readLong());
+            assign(null);
+            break;
+        default:
+            throw new StreamCorruptedException(
+                    "invalid string type code: " + Integer.toHexString(tc & 0xFF));
+        }
+    }
+
+    private void assign(ClassInfo desc) {
+        handles.add(desc);
+    }
+
+    private ClassInfo lookup(int handle) throws StreamCorruptedException {
+        int i = handle - baseWireHandle;
+        if (i < 0 || i >= handles.size()) {
+            throw new StreamCorruptedException(
+                    "invalid handle value: " + Integer.toHexString(handle));
+        }
+        return handles.get(i);
+    }
+
+    private void reset() {
+        // Replace rather than clear so that a failed scan can roll back.
+        handles = new ArrayList<ClassInfo>();
+    }
+
+    private static int getPrimitiveSize(byte type) throws StreamCorruptedException {
+        switch (type) {
+        case 'B': case 'Z':
+            return 1;
+        case 'C': case 'S':
+            return 2;
+        case 'I': case 'F':
+            return 4;
+        case 'J': case 'D':
+            return 8;
+        case 'L': case '[':
+            return 0;
+        default:
+            throw new StreamCorruptedException(
+                    "invalid type code: " + (char) type);
+        }
+    }
+
+    private byte peekByte() {
+        return buffer.getByte(index);
+    }
+
+    private byte readByte() {
+        return buffer.getByte(index ++);
+    }
+
+    private int readUnsignedByte() {
+        return buffer.getUnsignedByte(index ++);
+    }
+
+    private short readShort() {
+        short value = buffer.getShort(index);
+        index += 2;
+        return value;
+    }
+
+    private int readUnsignedShort() {
+        int value = buffer.getUnsignedShort(index);
+        index += 2;
+        return value;
+    }
+
+    private int readInt() {
+        int value = buffer.getInt(index);
+        index += 4;
+        return value;
+    }
+
+    private long readLong() {
+        long value = buffer.getLong(index);
+        index += 8;
+        return value;
+    }
+
+    private void skip(long length) throws StreamCorruptedException {
+        if (length < 0 || index + length > Integer.MAX_VALUE) {
+            throw new StreamCorruptedException("invalid length: " + length);
+        }
+        if (length > 0) {
+            // Make sure that the skipped bytes have been received.
+            buffer.getByte((int) (index + length - 1));
+            index += length;
+        }
+    }
+
+    private static final class ClassInfo {
+        byte flags;
+        /** The type code of the array elements, or {@code 0} if not an array. */
+        byte componentType;
+        int primitiveBytes;
+        int objectFieldCount;
+        ClassInfo superDesc;
+    }
+
+    private static final class UnknownLengthException extends Exception {
+        private static final long serialVersionUID = -2876516186398513312L;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.codec.serialization;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+
+/**
+ * Serializes objects with a single {@link CompactObjectOutputStream} which
+ * is reset between objects, so that its internal buffers and tables are not
+ * created again for every object.  The serialized form of each object is
+ * exactly the same as what a new {@link CompactObjectOutputStream} produces.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ */
+final class ReusableObjectOutputStream {
+
+    private final ClassNameDictionary dictionary;
+    private final SwitchableOutputStream target = new SwitchableOutputStream();
+    private CompactObjectOutputStream out;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param dictionary  the dictionary of the class names written so far,
+     *                    or {@code null} if the class names are not cached
+     */
+    ReusableObjectOutputStream(ClassNameDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Writes the serialized form of the specified object, including the
+     * stream header, to the specified buffer.
+     */
+    void writeObject(Object obj, ChannelBuffer buffer) throws IOException {
+        target.switchStream(new ChannelBufferOutputStream(buffer));
+        boolean success = false;
+        try {
+            if (out == null) {
+                // The constructor writes the stream header.
+                out = new CompactObjectOutputStream(target, dictionary);
+            } else {
+                buffer.writeByte((byte) ObjectStreamConstants.STREAM_VERSION);
+            }
+            out.writeObject(obj);
+            out.flush();
+
+            // Forget the written objects without sending TC_RESET.
+            target.switchStream(null);
+            out.reset();
+            out.flush();
+            success = true;
+        } finally {
+            target.switchStream(null);
+            if (!success) {
+                // The state of the failed stream is unknown.
+                out = null;
+            }
+            if (dictionary != null) {
+                if (success) {
+                    dictionary.commit();
+                } else {
+                    dictionary.rollback();
+                }
+            }
+        }
+    }
+
+    /**
+     * An {@link OutputStream} which writes to the current destination, or
+     * discards the data when there is no destination.
+     */
+    private static final class SwitchableOutputStream extends OutputStream {
+        private OutputStream out;
+
+        void switchStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (out != null) {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (out != null) {
+                out.write(b, off, len);
+            }
+        }
+    }
+}
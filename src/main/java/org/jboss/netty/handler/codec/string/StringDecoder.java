@@ -24,7 +24,13 @@ package org.jboss.netty.handler.codec.string;
 
 import static org.jboss.netty.channel.Channels.*;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelEvent;
@@ -61,6 +67,11 @@ import org.jboss.netty.handler.codec.frame.FrameDecoder;
  *     ch.write("Did you say '" + msg + "'?\n");
  * }
  * </pre>
+ * The bytes are decoded from the content of the received buffer without
+ * copying them first, by a {@link CharsetDecoder} which is reused by each
+ * thread.  If the character set is {@code US-ASCII}, {@code ISO-8859-1} or
+ * {@code UTF-8}, a buffer which contains only ASCII characters is decoded
+ * without a {@link CharsetDecoder} at all.
  *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Trustin Lee (tlee@redhat.com)
@@ -72,7 +83,19 @@ import org.jboss.netty.handler.codec.frame.FrameDecoder;
 @ChannelPipelineCoverage("all")
 public class StringDecoder implements ChannelUpstreamHandler {
 
-    private final String charsetName;
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final Charset charset;
+    private final boolean asciiCompatible;
+    private final ThreadLocal<CharsetDecoder> decoders =
+        new ThreadLocal<CharsetDecoder>() {
+            @Override
+            protected CharsetDecoder initialValue() {
+                return charset.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+        };
 
     /**
      * Creates a new instance with the current system character set.
@@ -99,7 +122,11 @@ public class StringDecoder implements ChannelUpstreamHandler {
         if (charset == null) {
             throw new NullPointerException("charset");
         }
-        charsetName = charset.name();
+        this.charset = charset;
+        String name = charset.name();
+        asciiCompatible =
+            name.equals("US-ASCII") || name.equals("ISO-8859-1") ||
+            name.equals("UTF-8");
     }
 
     public void handleUpstream(
@@ -117,6 +144,66 @@ public class StringDecoder implements ChannelUpstreamHandler {
 
         fireMessageReceived(
                 context, e.getChannel(),
-                ((ChannelBuffer) e.getMessage()).toString(charsetName));
+                decode((ChannelBuffer) e.getMessage()));
+    }
+
+    private String decode(ChannelBuffer buffer) throws CharacterCodingException {
+        int length = buffer.readableBytes();
+        if (length == 0) {
+            return "";
+        }
+
+        ByteBuffer src = buffer.toByteBuffer(buffer.readerIndex(), length);
+        if (asciiCompatible) {
+            String s = decodeAscii(src);
+            if (s != null) {
+                return s;
+            }
+        }
+
+        CharsetDecoder decoder = decoders.get();
+        decoder.reset();
+        CharBuffer dst = CharBuffer.allocate(
+                (int) Math.ceil(length * (double) decoder.maxCharsPerByte()));
+        CoderResult cr = decoder.decode(src, dst, true);
+        if (!cr.isUnderflow()) {
+            cr.throwException();
+        }
+        cr = decoder.flush(dst);
+        if (!cr.isUnderflow()) {
+            cr.throwException();
+        }
+        return new String(dst.array(), 0, dst.position());
+    }
+
+    /**
+     * Returns the specified bytes as a string if they are all ASCII
+     * characters, or {@code null} otherwise.
+     */
+    private static String decodeAscii(ByteBuffer src) {
+        final int position = src.position();
+        final int length = src.remaining();
+        if (src.hasArray()) {
+            byte[] array = src.array();
+            int offset = src.arrayOffset() + position;
+            int end = offset + length;
+            for (int i = offset; i < end; i ++) {
+                if (array[i] < 0) {
+                    return null;
+                }
+            }
+            // ISO-8859-1 maps every ASCII byte to the same character.
+            return new String(array, offset, length, ISO_8859_1);
+        }
+
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i ++) {
+            byte b = src.get(position + i);
+            if (b < 0) {
+                return null;
+            }
+            chars[i] = (char) b;
+        }
+        return new String(chars);
     }
 }
@@ -25,7 +25,13 @@ package org.jboss.netty.handler.codec.string;
 import static org.jboss.netty.buffer.ChannelBuffers.*;
 import static org.jboss.netty.channel.Channels.*;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelDownstreamHandler;
@@ -59,6 +65,11 @@ import org.jboss.netty.handler.codec.frame.Delimiters;
  *     ch.write("Did you say '" + msg + "'?\n");
  * }
  * </pre>
+ * The string is encoded by a {@link CharsetEncoder} which is reused by each
+ * thread.  If the character set is {@code US-ASCII}, {@code ISO-8859-1} or
+ * {@code UTF-8}, a string which contains only ASCII characters is encoded
+ * without a {@link CharsetEncoder} at all, and {@code UTF-8} is always
+ * encoded directly into a buffer of the exact length.
  *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Trustin Lee (tlee@redhat.com)
@@ -70,7 +81,18 @@ import org.jboss.netty.handler.codec.frame.Delimiters;
 @ChannelPipelineCoverage("all")
 public class StringEncoder implements ChannelDownstreamHandler {
 
-    private final String charsetName;
+    private final Charset charset;
+    private final boolean asciiCompatible;
+    private final boolean utf8;
+    private final ThreadLocal<CharsetEncoder> encoders =
+        new ThreadLocal<CharsetEncoder>() {
+            @Override
+            protected CharsetEncoder initialValue() {
+                return charset.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+        };
 
     public StringEncoder() {
         this(Charset.defaultCharset());
@@ -84,7 +106,11 @@ public class StringEncoder implements ChannelDownstreamHandler {
         if (charset == null) {
             throw new NullPointerException("charset");
         }
-        charsetName = charset.name();
+        this.charset = charset;
+        String name = charset.name();
+        utf8 = name.equals("UTF-8");
+        asciiCompatible =
+            utf8 || name.equals("US-ASCII") || name.equals("ISO-8859-1");
     }
 
     public void handleDownstream(
@@ -101,6 +127,109 @@ public class StringEncoder implements ChannelDownstreamHandler {
         }
 
         write(context, e.getChannel(), e.getFuture(),
-                copiedBuffer(String.valueOf(e.getMessage()), charsetName));
+                encode(String.valueOf(e.getMessage())));
+    }
+
+    private ChannelBuffer encode(String s) throws CharacterCodingException {
+        int length = s.length();
+        if (length == 0) {
+            return EMPTY_BUFFER;
+        }
+
+        if (utf8) {
+            return encodeUtf8(s);
+        }
+        if (asciiCompatible) {
+            ChannelBuffer buffer = encodeAscii(s);
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+
+        CharsetEncoder encoder = encoders.get();
+        encoder.reset();
+        ByteBuffer dst = ByteBuffer.allocate(
+                (int) Math.ceil(length * (double) encoder.maxBytesPerChar()));
+        CoderResult cr = encoder.encode(CharBuffer.wrap(s), dst, true);
+        if (!cr.isUnderflow()) {
+            cr.throwException();
+        }
+        cr = encoder.flush(dst);
+        if (!cr.isUnderflow()) {
+            cr.throwException();
+        }
+        return wrappedBuffer(dst.array(), 0, dst.position());
+    }
+
+    /**
+     * Returns the specified string as a buffer if it contains only ASCII
+     * characters, or {@code null} otherwise.
+     */
+    private static ChannelBuffer encodeAscii(String s) {
+        int length = s.length();
+        byte[] dst = new byte[length];
+        for (int i = 0; i < length; i ++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                return null;
+            }
+            dst[i] = (byte) c;
+        }
+        return wrappedBuffer(dst);
+    }
+
+    private static ChannelBuffer encodeUtf8(String s) {
+        int length = s.length();
+        byte[] dst = new byte[utf8Length(s)];
+        int j = 0;
+        for (int i = 0; i < length; i ++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst[j ++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[j ++] = (byte) (0xC0 | c >> 6);
+                dst[j ++] = (byte) (0x80 | c & 0x3F);
+            } else if (!Character.isHighSurrogate(c) && !Character.isLowSurrogate(c)) {
+                dst[j ++] = (byte) (0xE0 | c >> 12);
+                dst[j ++] = (byte) (0x80 | c >> 6 & 0x3F);
+                dst[j ++] = (byte) (0x80 | c & 0x3F);
+            } else if (isSurrogatePair(s, i)) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++ i));
+                dst[j ++] = (byte) (0xF0 | codePoint >> 18);
+                dst[j ++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                dst[j ++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                dst[j ++] = (byte) (0x80 | codePoint & 0x3F);
+            } else {
+                // Unpaired surrogate - replaced as String.getBytes() does.
+                dst[j ++] = '?';
+            }
+        }
+        return wrappedBuffer(dst);
+    }
+
+    private static int utf8Length(String s) {
+        int length = s.length();
+        int utf8Length = length;
+        for (int i = 0; i < length; i ++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                continue;
+            } else if (c < 0x800) {
+                utf8Length ++;
+            } else if (!Character.isHighSurrogate(c) && !Character.isLowSurrogate(c)) {
+                utf8Length += 2;
+            } else if (isSurrogatePair(s, i)) {
+                // 4 bytes for 2 chars
+                utf8Length += 2;
+                i ++;
+            }
+        }
+        return utf8Length;
+    }
+
+    private static boolean isSurrogatePair(String s, int i) {
+        return Character.isHighSurrogate(s.charAt(i)) &&
+               i + 1 < s.length() &&
+               Character.isLowSurrogate(s.charAt(i + 1));
     }
 }
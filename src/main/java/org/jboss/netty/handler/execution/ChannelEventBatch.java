@@ -0,0 +1,148 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.execution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+
+/**
+ * A {@link ChannelEventRunnable} which sends a {@link MessageEvent} and the
+ * {@link MessageEvent}s appended to it while it was waiting in the queue of
+ * an {@link java.util.concurrent.Executor}.  The executors see the first
+ * event only, hence they route and account the batch like a single event;
+ * the size of the appended events is accounted separately if the executor
+ * is a {@link MemoryAwareThreadPoolExecutor}.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ */
+final class ChannelEventBatch extends ChannelEventRunnable {
+
+    private final MemoryAwareThreadPoolExecutor executor;
+    private final ConcurrentMap<Channel, ChannelEventBatch> openBatches;
+    private List<MessageEvent> appendedEvents;
+    private long appendedSize;
+    /** Set when this batch starts to run or is closed. */
+    private boolean closed;
+
+    /**
+     * @param executor     the executor which accounts the appended events, or
+     *                     {@code null} if the executor is not memory-aware
+     * @param openBatches  the map of the open batches, which this batch
+     *                     leaves when it starts to run
+     */
+    ChannelEventBatch(
+            ChannelHandlerContext ctx, MessageEvent e,
+            MemoryAwareThreadPoolExecutor executor,
+            ConcurrentMap<Channel, ChannelEventBatch> openBatches) {
+        super(ctx, e);
+        this.executor = executor;
+        this.openBatches = openBatches;
+    }
+
+    /**
+     * Appends the specified event to this batch.
+     *
+     * @return {@code true} if the event was appended.  {@code false} if this
+     *         batch started to run or was closed already, in which case the
+     *         caller must submit the event separately.
+     */
+    boolean append(MessageEvent e) {
+        if (executor == null) {
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                add(e, 0);
+            }
+            return true;
+        }
+
+        // Account first so that the counter never goes below zero.
+        int size = executor.getObjectSizeEstimator().estimateSize(e);
+        boolean pause = executor.increaseBatchCounter(this, size);
+        synchronized (this) {
+            if (!closed) {
+                add(e, size);
+                size = 0;
+            }
+        }
+        if (size != 0) {
+            executor.decreaseBatchCounter(this, size);
+            return false;
+        }
+
+        if (pause) {
+            executor.waitForQueue();
+        }
+        return true;
+    }
+
+    /**
+     * Prevents any further event from being appended to this batch.
+     */
+    synchronized void close() {
+        closed = true;
+    }
+
+    private void add(MessageEvent e, int size) {
+        if (appendedEvents == null) {
+            appendedEvents = new ArrayList<MessageEvent>();
+        }
+        appendedEvents.add(e);
+        appendedSize += size;
+    }
+
+    @Override
+    public void run() {
+        List<MessageEvent> appendedEvents;
+        long appendedSize;
+        openBatches.remove(getEvent().getChannel(), this);
+        synchronized (this) {
+            closed = true;
+            appendedEvents = this.appendedEvents;
+            appendedSize = this.appendedSize;
+            // Do not retain the events after the batch ran.
+            this.appendedEvents = null;
+        }
+
+        if (appendedSize != 0) {
+            executor.decreaseBatchCounter(this, appendedSize);
+        }
+
+        ChannelHandlerContext ctx = getContext();
+        ctx.sendUpstream(getEvent());
+        if (appendedEvents != null) {
+            for (MessageEvent e: appendedEvents) {
+                ctx.sendUpstream(e);
+            }
+        }
+    }
+}
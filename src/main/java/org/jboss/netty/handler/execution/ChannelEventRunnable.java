@@ -42,6 +42,7 @@ public class ChannelEventRunnable implements Runnable {
 
     private final ChannelHandlerContext ctx;
     private final ChannelEvent e;
+    /** Calculated once when this task is queued for the first time. */
     volatile int estimatedSize;
 
     /**
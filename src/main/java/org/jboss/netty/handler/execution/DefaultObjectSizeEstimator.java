@@ -31,10 +31,18 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.MessageEvent;
 
 /**
  * The default {@link ObjectSizeEstimator} implementation for general purpose.
+ * <p>
+ * A {@link MessageEvent}, or a {@link ChannelEventRunnable} of it, whose
+ * message is a {@link ChannelBuffer}, a {@code byte[]} or a {@link String} is
+ * estimated in constant time without reflection or memory allocation.  The
+ * size of other message types is calculated from their fields, unless an
+ * {@link ObjectSizeHint} was registered for the type via
+ * {@link #setHint(Class, ObjectSizeHint)}.
  *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Trustin Lee (tlee@redhat.com)
@@ -44,8 +52,21 @@ import org.jboss.netty.channel.MessageEvent;
  */
 public class DefaultObjectSizeEstimator implements ObjectSizeEstimator {
 
+    // The sizes below are what the reflection-based estimation yields for
+    // the usual implementations.
+    /** A {@link ChannelEventRunnable} and its {@link MessageEvent}. */
+    private static final int MESSAGE_EVENT_RUNNABLE_OVERHEAD = 88;
+    /** A {@link MessageEvent} appended to a {@link ChannelEventBatch}. */
+    private static final int MESSAGE_EVENT_OVERHEAD = 48;
+    private static final int BUFFER_OVERHEAD = 40;
+    private static final int BYTE_ARRAY_OVERHEAD = 16;
+    private static final int STRING_OVERHEAD = 40;
+
     private final ConcurrentMap<Class<?>, Integer> class2size =
         new ConcurrentHashMap<Class<?>, Integer>();
+    private final ConcurrentMap<Class<?>, ObjectSizeHint<Object>> hints =
+        new ConcurrentHashMap<Class<?>, ObjectSizeHint<Object>>();
+    private volatile boolean hasHints;
 
     /**
      * Creates a new instance.
@@ -62,21 +83,68 @@ public class DefaultObjectSizeEstimator implements ObjectSizeEstimator {
         class2size.put(void.class, 0);
     }
 
+    /**
+     * Sets the {@link ObjectSizeHint} which estimates the size of the
+     * objects whose class is exactly the specified type.  The hint takes
+     * precedence over the built-in estimation of the type.
+     *
+     * @param hint  the hint of the type, or {@code null} to remove the
+     *              hint which was set previously
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void setHint(Class<T> type, ObjectSizeHint<? super T> hint) {
+        if (type == null) {
+            throw new NullPointerException("type");
+        }
+        if (hint == null) {
+            hints.remove(type);
+        } else {
+            hints.put(type, (ObjectSizeHint<Object>) hint);
+        }
+        hasHints = !hints.isEmpty();
+    }
+
+    /**
+     * Returns the {@link ObjectSizeHint} which was set for the specified type.
+     *
+     * @return the hint of the type, or {@code null} if no hint was set
+     */
+    public ObjectSizeHint<?> getHint(Class<?> type) {
+        return hints.get(type);
+    }
+
     public int estimateSize(Object o) {
         if (o == null) {
             return 8;
         }
 
+        int size;
+        if (o instanceof ChannelEventRunnable) {
+            ChannelEvent e = ((ChannelEventRunnable) o).getEvent();
+            if (e instanceof MessageEvent) {
+                size = estimateMessageSize(((MessageEvent) e).getMessage());
+                if (size >= 0) {
+                    return align(MESSAGE_EVENT_RUNNABLE_OVERHEAD + size);
+                }
+            }
+        } else if (o instanceof MessageEvent) {
+            size = estimateMessageSize(((MessageEvent) o).getMessage());
+            if (size >= 0) {
+                return align(MESSAGE_EVENT_OVERHEAD + size);
+            }
+        } else {
+            size = estimateMessageSize(o);
+            if (size >= 0) {
+                return align(size);
+            }
+        }
+
         int answer = 8 + estimateSize(o.getClass(), null);
 
         if (o instanceof ChannelEventRunnable) {
             answer += estimateSize(((ChannelEventRunnable) o).getEvent());
         } else if (o instanceof MessageEvent) {
             answer += estimateSize(((MessageEvent) o).getMessage());
-        } else if (o instanceof ChannelBuffer) {
-            answer += ((ChannelBuffer) o).capacity();
-        } else if (o instanceof byte[]) {
-            answer += ((byte[]) o).length;
         } else if (o instanceof ByteBuffer) {
             answer += ((ByteBuffer) o).remaining();
         } else if (o instanceof CharSequence) {
@@ -90,6 +158,32 @@ public class DefaultObjectSizeEstimator implements ObjectSizeEstimator {
         return align(answer);
     }
 
+    /**
+     * Estimates the size of a well-known message type or a type with a hint.
+     *
+     * @return the estimated size, or {@code -1} if the size must be
+     *         calculated from the fields of the message
+     */
+    private int estimateMessageSize(Object m) {
+        if (hasHints) {
+            ObjectSizeHint<Object> hint = hints.get(m.getClass());
+            if (hint != null) {
+                return hint.estimateSize(m);
+            }
+        }
+
+        if (m instanceof ChannelBuffer) {
+            return BUFFER_OVERHEAD + ((ChannelBuffer) m).capacity();
+        }
+        if (m instanceof byte[]) {
+            return BYTE_ARRAY_OVERHEAD + ((byte[]) m).length;
+        }
+        if (m instanceof String) {
+            return STRING_OVERHEAD + (((String) m).length() << 1);
+        }
+        return -1;
+    }
+
     private int estimateSize(Class<?> clazz, Set<Class<?>> visitedClasses) {
         Integer objectSize = class2size.get(clazz);
         if (objectSize != null) {
@@ -130,11 +224,6 @@ public class DefaultObjectSizeEstimator implements ObjectSizeEstimator {
     }
 
     private static int align(int size) {
-        if (size % 8 != 0) {
-            size /= 8;
-            size ++;
-            size *= 8;
-        }
-        return size;
+        return size + 7 & ~7;
     }
 }
@@ -22,13 +22,17 @@
  */
 package org.jboss.netty.handler.execution;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineCoverage;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.MessageEvent;
 
 /**
  * Forwards a upstream {@link ChannelEvent} to an {@link Executor}.
@@ -50,6 +54,25 @@ import org.jboss.netty.channel.ChannelUpstreamHandler;
  * to utilize more processors to handle {@link ChannelEvent}s.  You can also
  * use other {@link Executor} implementation than the recommended
  * {@link OrderedMemoryAwareThreadPoolExecutor}.
+ * <p>
+ * If a flood of {@code "messageReceived"} events delays the state events
+ * such as {@code "channelClosed"} and hence the release of the resources,
+ * enable the priority lanes of {@link OrderedMemoryAwareThreadPoolExecutor}
+ * via {@link OrderedMemoryAwareThreadPoolExecutor#setStateEventWeight(int)}.
+ *
+ * <h3>Event batching</h3>
+ * <p>
+ * A decoder usually generates many {@code "messageReceived"} events from a
+ * single read operation, and each of them is submitted to the
+ * {@link Executor} as a separate task by default.  If event batching is
+ * enabled, the consecutive {@link MessageEvent}s of the same channel are
+ * appended to the task of the first event as long as the task did not start
+ * to run yet.  The handlers behind this handler still receive the events one
+ * by one in the same order, but a burst of events costs only one task and
+ * one queue operation.  Any other event of the channel ends the batch, no
+ * matter which thread forwarded it, and it is always submitted separately.
+ * {@link MemoryAwareThreadPoolExecutor} accounts the size of the appended
+ * events as well.
  *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Trustin Lee (tlee@redhat.com)
@@ -63,15 +86,39 @@ import org.jboss.netty.channel.ChannelUpstreamHandler;
 public class ExecutionHandler implements ChannelUpstreamHandler {
 
     private final Executor executor;
+    private final MemoryAwareThreadPoolExecutor memoryAwareExecutor;
+    /** The batch of each channel which did not start to run yet. */
+    private final ConcurrentMap<Channel, ChannelEventBatch> openBatches;
 
     /**
      * Creates a new instance with the specified {@link Executor}.
      */
     public ExecutionHandler(Executor executor) {
+        this(executor, false);
+    }
+
+    /**
+     * Creates a new instance with the specified {@link Executor}.
+     *
+     * @param batchEvents  {@code true} if the consecutive {@link MessageEvent}s
+     *                     of the same channel should be submitted as a single
+     *                     task
+     */
+    public ExecutionHandler(Executor executor, boolean batchEvents) {
         if (executor == null) {
             throw new NullPointerException("executor");
         }
         this.executor = executor;
+        if (executor instanceof MemoryAwareThreadPoolExecutor) {
+            memoryAwareExecutor = (MemoryAwareThreadPoolExecutor) executor;
+        } else {
+            memoryAwareExecutor = null;
+        }
+        if (batchEvents) {
+            openBatches = new ConcurrentHashMap<Channel, ChannelEventBatch>();
+        } else {
+            openBatches = null;
+        }
     }
 
     /**
@@ -81,8 +128,50 @@ public class ExecutionHandler implements ChannelUpstreamHandler {
         return executor;
     }
 
+    /**
+     * Returns {@code true} if and only if the consecutive
+     * {@link MessageEvent}s of the same channel are submitted as a single task.
+     */
+    public boolean isBatchEvents() {
+        return openBatches != null;
+    }
+
     public void handleUpstream(
             ChannelHandlerContext context, ChannelEvent e) throws Exception {
-        executor.execute(new ChannelEventRunnable(context, e));
+        if (openBatches == null) {
+            executor.execute(new ChannelEventRunnable(context, e));
+            return;
+        }
+
+        Channel channel = e.getChannel();
+        if (!(e instanceof MessageEvent)) {
+            ChannelEventBatch batch = openBatches.remove(channel);
+            if (batch != null) {
+                // No event which is forwarded after this one is appended.
+                batch.close();
+            }
+            executor.execute(new ChannelEventRunnable(context, e));
+            return;
+        }
+
+        MessageEvent m = (MessageEvent) e;
+        ChannelEventBatch batch = openBatches.get(channel);
+        if (batch != null && batch.getContext() == context && batch.append(m)) {
+            return;
+        }
+
+        // Registered before submitted so that the batch, which removes itself
+        // when it starts to run, is never left behind.
+        batch = new ChannelEventBatch(context, m, memoryAwareExecutor, openBatches);
+        openBatches.put(channel, batch);
+        boolean success = false;
+        try {
+            executor.execute(batch);
+            success = true;
+        } finally {
+            if (!success) {
+                openBatches.remove(channel, batch);
+            }
+        }
     }
 }
@@ -22,7 +22,17 @@
  */
 package org.jboss.netty.handler.execution;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
@@ -31,12 +41,16 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.jboss.netty.channel.AbstractChannel;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelState;
 import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.util.LinkedTransferQueue;
 
 /**
@@ -49,6 +63,27 @@ import org.jboss.netty.util.LinkedTransferQueue;
  * {@link #execute(Runnable)} call will block until the tasks in the queue
  * are processed so that the total size goes under the threshold.
  * <p>
+ * Blocking {@link #execute(Runnable)} stalls the I/O thread which submitted
+ * the task, and therefore all other channels served by the same thread.
+ * If {@linkplain #setBlocking(boolean) blocking} is disabled, the per-executor
+ * threshold is enforced like the per-channel one instead: when it is
+ * exceeded, the reads of the channels which queued the largest amount of
+ * data are suspended, and they are resumed one by one, the channel with the
+ * smallest backlog first, as the queued tasks are processed.
+ * <p>
+ * The thresholds can be changed at any time, and the blocked callers and
+ * the suspended channels are re-evaluated against the new thresholds
+ * immediately.  The per-executor threshold can also be derived from the
+ * free heap space periodically - see {@link #setHeapHeadroomRatio(double)}.
+ * <p>
+ * The total size is kept in a striped counter so that the threads which
+ * submit and run the tasks do not contend for a single counter.  The sum
+ * of the stripes is compared with the per-executor threshold only when the
+ * stripe of a newly submitted task exceeds its share of the threshold.
+ * Therefore, the total size is not read at all while the queue is short,
+ * and the per-executor threshold can be exceeded by the tasks which were
+ * submitted to the stripes still under their share.
+ * <p>
  * {@link ObjectSizeEstimator} is used to calculate the size of each task.
  * <p>
  * Please note that this executor does not maintain the order of the
@@ -81,16 +116,42 @@ import org.jboss.netty.util.LinkedTransferQueue;
  */
 public class MemoryAwareThreadPoolExecutor extends ThreadPoolExecutor {
 
-    private volatile Settings settings = new Settings(0, 0);
+    private static final long HEAP_CHECK_INTERVAL_MILLIS = 1000;
+
+    private volatile Settings settings = new Settings(0, 0, 1);
+    private final Object settingsLock = new Object();
+    private volatile double heapHeadroomRatio;
+    private final AtomicLong nextHeapCheckTime = new AtomicLong();
 
-    // XXX Can be changed in runtime now.  Make it mutable in 3.1.
     private final ObjectSizeEstimator objectSizeEstimator;
 
-    private final ConcurrentMap<Channel, AtomicLong> channelCounters =
-        new ConcurrentHashMap<Channel, AtomicLong>();
-    private final AtomicLong totalCounter = new AtomicLong();
+    /**
+     * The counters of all channels with queued events.  A counter is usually
+     * found via the {@linkplain AbstractChannel#getExecutorState() state}
+     * attached to its channel, hence this map is updated only when a channel
+     * is seen for the first time or closed.
+     */
+    private final ConcurrentMap<Channel, ChannelCounter> channelCounters =
+        new ConcurrentHashMap<Channel, ChannelCounter>();
+    /**
+     * The total size of the queued tasks.  A task is always accounted in the
+     * same stripe of the counter, and the sum of the stripes is read only
+     * when a stripe exceeds its share of the threshold.
+     */
+    private final StripedCounter totalCounter = new StripedCounter();
 
+    /** Signaled when the total size goes under the threshold. */
     private final Semaphore semaphore = new Semaphore(0);
+    /** The number of the callers blocked in {@link #waitForQueue()}. */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private volatile boolean blocking = true;
+    /** The channels suspended due to the per-executor threshold. */
+    private final ConcurrentMap<Channel, ChannelCounter> suspendedChannels =
+        new ConcurrentHashMap<Channel, ChannelCounter>();
+    private final ReentrantLock suspensionLock = new ReentrantLock();
+    /** The total size which triggers the next suspension. */
+    private volatile long nextSuspensionThreshold;
 
     /**
      * Creates a new instance.
@@ -198,7 +259,8 @@ public class MemoryAwareThreadPoolExecutor extends ThreadPoolExecutor {
 
     /**
      * Sets the maximum total size of the queued events per channel.
-     * Specify {@code 0} to disable.
+     * Specify {@code 0} to disable.  The reads of the channels are
+     * suspended or resumed immediately according to the new threshold.
      */
     public void setMaxChannelMemorySize(long maxChannelMemorySize) {
         if (maxChannelMemorySize < 0) {
@@ -206,12 +268,25 @@ public class MemoryAwareThreadPoolExecutor extends ThreadPoolExecutor {
                     "maxChannelMemorySize: " + maxChannelMemorySize);
         }
 
-        if (getTaskCount() > 0) {
-            throw new IllegalStateException(
-                    "can't be changed after a task is executed");
+        synchronized (settingsLock) {
+            settings = new Settings(
+                    maxChannelMemorySize, settings.maxTotalMemorySize,
+                    totalCounter.getStripeCount());
         }
 
-        settings = new Settings(maxChannelMemorySize, settings.maxTotalMemorySize);
+        for (Map.Entry<Channel, ChannelCounter> e: channelCounters.entrySet()) {
+            Channel channel = e.getKey();
+            if (!channel.isOpen()) {
+                continue;
+            }
+
+            ChannelCounter counter = e.getValue();
+            if (maxChannelMemorySize != 0 && counter.get() >= maxChannelMemorySize) {
+                suspend(channel, counter);
+            } else {
+                resume(channel, counter);
+            }
+        }
     }
 
     /**
@@ -223,7 +298,10 @@ public class MemoryAwareThreadPoolExecutor extends ThreadPoolExecutor {
 
     /**
      * Sets the maximum total size of the queued events for this pool.
-     * Specify {@code 0} to disable.
+     * Specify {@code 0} to disable.  The blocked callers and the suspended
+     * channels are re-evaluated immediately against the new threshold.
+     * Calling this method turns off the
+     * {@linkplain #setHeapHeadroomRatio(double) adaptive threshold}.
      */
     public void setMaxTotalMemorySize(long maxTotalMemorySize) {
         if (maxTotalMemorySize < 0) {
@@ -231,12 +309,141 @@ public class MemoryAwareThreadPoolExecutor extends ThreadPoolExecutor {
                     "maxTotalMemorySize: " + maxTotalMemorySize);
         }
 
-        if (getTaskCount() > 0) {
-            throw new IllegalStateException(
-                    "can't be changed after a task is executed");
+        heapHeadroomRatio = 0;
+        updateMaxTotalMemorySize(maxTotalMemorySize);
+    }
+
+    private void updateMaxTotalMemorySize(long maxTotalMemorySize) {
+        synchronized (settingsLock) {
+            settings = new Settings(
+                    settings.maxChannelMemorySize, maxTotalMemorySize,
+                    totalCounter.getStripeCount());
+        }
+
+        if (waiters.get() != 0) {
+            signalWaiters();
+        }
+        if (!blocking) {
+            nextSuspensionThreshold = 0;
+            updateSuspension();
+        }
+    }
+
+    /**
+     * Returns the fraction of the free heap space which the queued events
+     * can occupy, or {@code 0} if the adaptive threshold is off.
+     */
+    public double getHeapHeadroomRatio() {
+        return heapHeadroomRatio;
+    }
+
+    /**
+     * Derives {@link #getMaxTotalMemorySize() maxTotalMemorySize} from the
+     * heap headroom, which is the maximum heap size minus the heap space
+     * occupied by the live objects other than the queued events.  The
+     * threshold is re-calculated at most once a second, as the tasks are
+     * submitted, to the specified fraction of the headroom.  The live heap
+     * size is taken from the memory usage after the last garbage collection
+     * if the JVM provides it.
+     *
+     * @param heapHeadroomRatio  a fraction between {@code 0} and {@code 1}.
+     *                           Specify {@code 0} to turn off the adaptive
+     *                           threshold and keep the current threshold.
+     */
+    public void setHeapHeadroomRatio(double heapHeadroomRatio) {
+        if (!(heapHeadroomRatio >= 0 && heapHeadroomRatio <= 1)) {
+            throw new IllegalArgumentException(
+                    "heapHeadroomRatio: " + heapHeadroomRatio +
+                    " (expected: 0.0 - 1.0)");
+        }
+
+        this.heapHeadroomRatio = heapHeadroomRatio;
+        if (heapHeadroomRatio != 0) {
+            nextHeapCheckTime.set(System.currentTimeMillis() + HEAP_CHECK_INTERVAL_MILLIS);
+            updateMaxTotalMemorySize(calculateMaxTotalMemorySize(heapHeadroomRatio));
+        }
+    }
+
+    private long calculateMaxTotalMemorySize(double heapHeadroomRatio) {
+        Runtime runtime = Runtime.getRuntime();
+        long maxHeapSize = runtime.maxMemory();
+        if (maxHeapSize == Long.MAX_VALUE) {
+            maxHeapSize = runtime.totalMemory();
+        }
+
+        long liveHeapSize = 0;
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) {
+                continue;
+            }
+
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null) {
+                liveHeapSize = runtime.totalMemory() - runtime.freeMemory();
+                break;
+            }
+            liveHeapSize += usage.getUsed();
+        }
+
+        long headroom = maxHeapSize - liveHeapSize + totalCounter.get();
+        return Math.max(1, (long) (headroom * heapHeadroomRatio));
+    }
+
+    /**
+     * Returns {@code true} if and only if {@link #execute(Runnable)} blocks
+     * the caller while the total size of the queued events exceeds
+     * {@link #getMaxTotalMemorySize()}.
+     */
+    public boolean isBlocking() {
+        return blocking;
+    }
+
+    /**
+     * Sets whether {@link #execute(Runnable)} blocks the caller while the
+     * total size of the queued events exceeds {@link #getMaxTotalMemorySize()}.
+     * If {@code false}, the reads of the channels which queued the most are
+     * suspended instead.  The default is {@code true}.  Switching the mode
+     * releases the blocked callers or resumes the suspended channels.
+     */
+    public void setBlocking(boolean blocking) {
+        this.blocking = blocking;
+        if (blocking) {
+            suspensionLock.lock();
+            try {
+                while (!suspendedChannels.isEmpty()) {
+                    resumeSmallestChannel();
+                }
+            } finally {
+                suspensionLock.unlock();
+            }
+        } else {
+            releaseWaiters();
+            nextSuspensionThreshold = 0;
+            updateSuspension();
+        }
+    }
+
+    /**
+     * Wakes up the callers blocked in {@link #waitForQueue()} if the total
+     * size went under the threshold.
+     */
+    private void signalWaiters() {
+        if (!isTotalExceeded()) {
+            semaphore.release();
         }
+    }
+
+    private void releaseWaiters() {
+        int waiters = this.waiters.get();
+        if (waiters > 0) {
+            semaphore.release(waiters);
+        }
+    }
 
-        settings = new Settings(settings.maxChannelMemorySize, maxTotalMemorySize);
+    private boolean isTotalExceeded() {
+        long maxTotalMemorySize = settings.maxTotalMemorySize;
+        return blocking && maxTotalMemorySize != 0 &&
+               totalCounter.get() >= maxTotalMemorySize;
     }
 
     @Override
@@ -245,7 +452,29 @@ public class MemoryAwareThreadPoolExecutor extends ThreadPoolExecutor {
         doExecute(command);
         if (pause) {
             //System.out.println("ACQUIRE");
-            semaphore.acquireUninterruptibly();
+            waitForQueue();
+        }
+    }
+
+    /**
+     * Blocks until the total size goes under the threshold.
+     * {@link #decreaseCounter(Runnable)} reads the total size after it
+     * updates the counter, and it signals a waiter when the total size is
+     * under the threshold.  A waiter registers itself before it reads the
+     * total size, hence either the waiter sees the decreased total size or
+     * the decreasing thread sees the waiter.
+     */
+    void waitForQueue() {
+        waiters.incrementAndGet();
+        try {
+            while (isTotalExceeded()) {
+                semaphore.acquireUninterruptibly();
+            }
+        } finally {
+            if (waiters.decrementAndGet() != 0) {
+                // Pass the signal on to the next waiter.
+                signalWaiters();
+            }
         }
     }
 
@@ -288,29 +517,90 @@ public class MemoryAwareThreadPoolExecutor extends ThreadPoolExecutor {
             return false;
         }
 
+        double heapHeadroomRatio = this.heapHeadroomRatio;
+        if (heapHeadroomRatio != 0) {
+            // Only the thread which claims the slot walks the memory pools.
+            long currentTime = System.currentTimeMillis();
+            long nextHeapCheckTime = this.nextHeapCheckTime.get();
+            if (currentTime >= nextHeapCheckTime &&
+                this.nextHeapCheckTime.compareAndSet(
+                        nextHeapCheckTime,
+                        currentTime + HEAP_CHECK_INTERVAL_MILLIS)) {
+                updateMaxTotalMemorySize(calculateMaxTotalMemorySize(heapHeadroomRatio));
+            }
+        }
+
+        int increment;
+        Channel channel = null;
+        if (task instanceof ChannelEventRunnable) {
+            // Never estimate the same event twice.
+            ChannelEventRunnable eventTask = (ChannelEventRunnable) task;
+            increment = eventTask.estimatedSize;
+            if (increment == 0) {
+                increment = getObjectSizeEstimator().estimateSize(task);
+                eventTask.estimatedSize = increment;
+            }
+            channel = eventTask.getEvent().getChannel();
+        } else {
+            increment = getObjectSizeEstimator().estimateSize(task);
+        }
+
+        return increaseCounter(task, channel, increment);
+    }
+
+    /**
+     * Accounts a {@link MessageEvent} which was appended to a
+     * {@link ChannelEventBatch} that is queued already.  The caller must block
+     * via {@link #waitForQueue()} if {@code true} is returned.
+     */
+    boolean increaseBatchCounter(ChannelEventBatch batch, int increment) {
+        return increaseCounter(batch, batch.getEvent().getChannel(), increment);
+    }
+
+    /**
+     * Releases the size of the {@link MessageEvent}s which were appended to a
+     * {@link ChannelEventBatch} when the batch starts to run.
+     */
+    void decreaseBatchCounter(ChannelEventBatch batch, long increment) {
+        decreaseCounter(batch, batch.getEvent().getChannel(), increment);
+    }
+
+    private boolean increaseCounter(Object task, Channel channel, long increment) {
         Settings settings = this.settings;
         long maxTotalMemorySize = settings.maxTotalMemorySize;
         long maxChannelMemorySize = settings.maxChannelMemorySize;
 
-        int increment = getObjectSizeEstimator().estimateSize(task);
-        long totalCounter = this.totalCounter.addAndGet(increment);
+        long stripeCounter = this.totalCounter.add(task, increment);
 
-        if (task instanceof ChannelEventRunnable) {
-            ChannelEventRunnable eventTask = (ChannelEventRunnable) task;
-            eventTask.estimatedSize = increment;
-            Channel channel = eventTask.getEvent().getChannel();
-            long channelCounter = getChannelCounter(channel).addAndGet(increment);
+        if (channel != null) {
+            ChannelCounter counter = getChannelCounter(channel);
+            long channelCounter = counter.addAndGet(increment);
             //System.out.println("IC: " + channelCounter + ", " + increment);
             if (maxChannelMemorySize != 0 && channelCounter >= maxChannelMemorySize && channel.isOpen()) {
                 if (channel.isReadable()) {
                     //System.out.println("UNREADABLE");
-                    channel.setReadable(false);
+                    suspend(channel, counter);
                 }
             }
         }
 
+        if (maxTotalMemorySize == 0 || stripeCounter < settings.maxStripeMemorySize) {
+            // The total size can't exceed the threshold unless a stripe does.
+            return false;
+        }
+
+        long totalCounter = this.totalCounter.get();
         //System.out.println("I: " + totalCounter + ", " + increment);
-        return maxTotalMemorySize != 0 && totalCounter >= maxTotalMemorySize;
+        if (totalCounter < maxTotalMemorySize) {
+            return false;
+        }
+        if (blocking) {
+            return true;
+        }
+        if (totalCounter >= nextSuspensionThreshold) {
+            updateSuspension();
+        }
+        return false;
     }
 
     protected void decreaseCounter(Runnable task) {
@@ -318,43 +608,235 @@ public class MemoryAwareThreadPoolExecutor extends ThreadPoolExecutor {
             return;
         }
 
-        Settings settings = this.settings;
-        long maxTotalMemorySize = settings.maxTotalMemorySize;
-        long maxChannelMemorySize = settings.maxChannelMemorySize;
-
-        int increment;
         if (task instanceof ChannelEventRunnable) {
-            increment = ((ChannelEventRunnable) task).estimatedSize;
+            ChannelEventRunnable eventTask = (ChannelEventRunnable) task;
+            decreaseCounter(task, eventTask.getEvent().getChannel(), eventTask.estimatedSize);
         } else {
-            increment = getObjectSizeEstimator().estimateSize(task);
+            decreaseCounter(task, null, getObjectSizeEstimator().estimateSize(task));
         }
+    }
 
-        long totalCounter = this.totalCounter.addAndGet(-increment);
+    private void decreaseCounter(Object task, Channel channel, long increment) {
+        long maxChannelMemorySize = settings.maxChannelMemorySize;
 
-        //System.out.println("D: " + totalCounter + ", " + increment);
-        if (maxTotalMemorySize != 0 && totalCounter + increment >= maxTotalMemorySize) {
+        this.totalCounter.add(task, -increment);
+
+        if (!blocking) {
+            if (!suspendedChannels.isEmpty()) {
+                updateSuspension();
+            }
+        } else if (waiters.get() != 0) {
             //System.out.println("RELEASE");
-            semaphore.release();
+            signalWaiters();
         }
 
-        if (task instanceof ChannelEventRunnable) {
-            Channel channel = ((ChannelEventRunnable) task).getEvent().getChannel();
-            long channelCounter = getChannelCounter(channel).addAndGet(-increment);
+        if (channel != null) {
+            ChannelCounter counter = getChannelCounter(channel);
+            long channelCounter = counter.addAndGet(-increment);
             //System.out.println("DC: " + channelCounter + ", " + increment);
             if (maxChannelMemorySize != 0 && channelCounter < maxChannelMemorySize && channel.isOpen()) {
-                if (!channel.isReadable()) {
+                if (counter.suspended) {
                     //System.out.println("READABLE");
+                    resume(channel, counter);
+                }
+            }
+        }
+    }
+
+    /**
+     * Suspends or resumes the channels to keep the total size of the queued
+     * events under {@link #getMaxTotalMemorySize()} without blocking.  Only
+     * one thread updates the suspension at a time; the others leave the work
+     * to it, and it looks at the counter again before it returns so that no
+     * update is lost.
+     */
+    private void updateSuspension() {
+        for (;;) {
+            if (!suspensionLock.tryLock()) {
+                return;
+            }
+            try {
+                long maxTotalMemorySize = settings.maxTotalMemorySize;
+                long totalCounter = this.totalCounter.get();
+                if (maxTotalMemorySize != 0 && totalCounter >= maxTotalMemorySize) {
+                    if (totalCounter >= nextSuspensionThreshold) {
+                        suspendLargestChannels(totalCounter);
+                        nextSuspensionThreshold =
+                            totalCounter + Math.max(1, maxTotalMemorySize >>> 4);
+                    }
+                } else {
+                    nextSuspensionThreshold = 0;
+                    if (maxTotalMemorySize == 0) {
+                        while (!suspendedChannels.isEmpty()) {
+                            resumeSmallestChannel();
+                        }
+                    } else if (totalCounter < maxTotalMemorySize - (maxTotalMemorySize >>> 2)) {
+                        resumeSmallestChannel();
+                    }
+                }
+            } finally {
+                suspensionLock.unlock();
+            }
+
+            // Retry if another thread gave up while this thread held the lock
+            // and the suspension is out of date: when the queue exceeded the
+            // threshold further, or when the queue is empty so that no more
+            // tasks will trigger the resumption of the suspended channels.
+            long maxTotalMemorySize = settings.maxTotalMemorySize;
+            long totalCounter = this.totalCounter.get();
+            if (maxTotalMemorySize != 0 && totalCounter >= maxTotalMemorySize) {
+                if (totalCounter < nextSuspensionThreshold) {
+                    return;
+                }
+            } else if (totalCounter != 0 || suspendedChannels.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Suspends the reads of the channels, the channel with the largest
+     * backlog first, until the suspended channels account for at least half
+     * of the specified total size.
+     */
+    private void suspendLargestChannels(long totalCounter) {
+        List<Map.Entry<Channel, ChannelCounter>> candidates =
+            new ArrayList<Map.Entry<Channel, ChannelCounter>>();
+        long suspendedSize = 0;
+        for (Map.Entry<Channel, ChannelCounter> e: channelCounters.entrySet()) {
+            ChannelCounter counter = e.getValue();
+            if (suspendedChannels.containsKey(e.getKey())) {
+                suspendedSize += counter.get();
+            } else if (counter.get() > 0) {
+                candidates.add(e);
+            }
+        }
+
+        // Sort by the snapshot of the counters; they change while sorting.
+        final Map<Channel, Long> sizes = new HashMap<Channel, Long>();
+        for (Map.Entry<Channel, ChannelCounter> e: candidates) {
+            sizes.put(e.getKey(), e.getValue().get());
+        }
+        Collections.sort(candidates, new Comparator<Map.Entry<Channel, ChannelCounter>>() {
+            public int compare(Map.Entry<Channel, ChannelCounter> a, Map.Entry<Channel, ChannelCounter> b) {
+                long sizeA = sizes.get(a.getKey());
+                long sizeB = sizes.get(b.getKey());
+                return sizeA > sizeB? -1 : sizeA < sizeB? 1 : 0;
+            }
+        });
+
+        for (Map.Entry<Channel, ChannelCounter> e: candidates) {
+            if (suspendedSize >= totalCounter >>> 1) {
+                break;
+            }
+
+            Channel channel = e.getKey();
+            if (!channel.isOpen()) {
+                continue;
+            }
+            suspendedChannels.put(channel, e.getValue());
+            suspendedSize += sizes.get(channel);
+            suspend(channel, e.getValue());
+        }
+    }
+
+    /**
+     * Resumes the reads of the suspended channel with the smallest backlog.
+     */
+    private void resumeSmallestChannel() {
+        Channel smallest = null;
+        ChannelCounter smallestCounter = null;
+        long smallestSize = Long.MAX_VALUE;
+        for (Map.Entry<Channel, ChannelCounter> e: suspendedChannels.entrySet()) {
+            Channel channel = e.getKey();
+            if (!channel.isOpen()) {
+                suspendedChannels.remove(channel);
+                continue;
+            }
+            long size = e.getValue().get();
+            if (size < smallestSize) {
+                smallest = channel;
+                smallestCounter = e.getValue();
+                smallestSize = size;
+            }
+        }
+
+        if (smallest == null) {
+            return;
+        }
+
+        suspendedChannels.remove(smallest);
+        // Still suspended if over the per-channel threshold - resumed by
+        // decreaseCounter() then.
+        resume(smallest, smallestCounter);
+    }
+
+    /**
+     * Suspends the reads of the specified channel if it exceeds a threshold
+     * and its reads are not suspended already.
+     */
+    private void suspend(Channel channel, ChannelCounter counter) {
+        synchronized (counter) {
+            if (isOverThreshold(channel, counter) && channel.isReadable()) {
+                counter.suspended = true;
+                channel.setReadable(false);
+            }
+        }
+    }
+
+    /**
+     * Resumes the reads of the specified channel if this executor suspended
+     * them and the channel does not exceed any threshold anymore.  The reads
+     * suspended by others are left as they are.
+     */
+    private void resume(Channel channel, ChannelCounter counter) {
+        synchronized (counter) {
+            if (counter.suspended && !isOverThreshold(channel, counter)) {
+                counter.suspended = false;
+                if (!channel.isReadable()) {
                     channel.setReadable(true);
                 }
             }
         }
     }
 
-    private AtomicLong getChannelCounter(Channel channel) {
-        AtomicLong counter = channelCounters.get(channel);
+    private boolean isOverThreshold(Channel channel, ChannelCounter counter) {
+        long maxChannelMemorySize = settings.maxChannelMemorySize;
+        return maxChannelMemorySize != 0 && counter.get() >= maxChannelMemorySize ||
+               suspendedChannels.containsKey(channel);
+    }
+
+    private ChannelCounter getChannelCounter(Channel channel) {
+        if (channel instanceof AbstractChannel) {
+            AbstractChannel c = (AbstractChannel) channel;
+            Object state = c.getExecutorState();
+            if (state == null) {
+                ChannelCounter counter = new ChannelCounter(this);
+                if (c.attachExecutorState(counter)) {
+                    channelCounters.put(channel, counter);
+                    if (!channel.isOpen()) {
+                        channelCounters.remove(channel);
+                    }
+                    return counter;
+                }
+                state = c.getExecutorState();
+            }
+
+            if (state instanceof ChannelCounter &&
+                ((ChannelCounter) state).executor == this) {
+                if (!channel.isOpen()) {
+                    channelCounters.remove(channel);
+                }
+                return (ChannelCounter) state;
+            }
+
+            // Another executor attached its state first - use the map.
+        }
+
+        ChannelCounter counter = channelCounters.get(channel);
         if (counter == null) {
-            counter = new AtomicLong();
-            AtomicLong oldCounter = channelCounters.putIfAbsent(channel, counter);
+            counter = new ChannelCounter(this);
+            ChannelCounter oldCounter = channelCounters.putIfAbsent(channel, counter);
             if (oldCounter != null) {
                 counter = oldCounter;
             }
@@ -386,13 +868,33 @@ public class MemoryAwareThreadPoolExecutor extends ThreadPoolExecutor {
         return true;
     }
 
+    private static final class ChannelCounter extends AtomicLong {
+
+        private static final long serialVersionUID = -6211935306407155587L;
+
+        /**
+         * {@code true} if this executor suspended the reads of the channel.
+         * Updated while the counter is locked.
+         */
+        volatile boolean suspended;
+
+        final MemoryAwareThreadPoolExecutor executor;
+
+        ChannelCounter(MemoryAwareThreadPoolExecutor executor) {
+            this.executor = executor;
+        }
+    }
+
     private static class Settings {
         final long maxChannelMemorySize;
         final long maxTotalMemorySize;
+        /** The size of a stripe which triggers the check of the total size. */
+        final long maxStripeMemorySize;
 
-        Settings(long maxChannelMemorySize, long maxTotalMemorySize) {
+        Settings(long maxChannelMemorySize, long maxTotalMemorySize, int stripeCount) {
             this.maxChannelMemorySize = maxChannelMemorySize;
             this.maxTotalMemorySize = maxTotalMemorySize;
+            maxStripeMemorySize = Math.max(1, maxTotalMemorySize / stripeCount);
         }
     }
 }
@@ -0,0 +1,48 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.execution;
+
+/**
+ * Estimates the size of the objects of a certain type in bytes.  A hint is
+ * registered to {@link DefaultObjectSizeEstimator} via
+ * {@link DefaultObjectSizeEstimator#setHint(Class, ObjectSizeHint)} when the
+ * default reflection-based estimation is either inaccurate or too expensive
+ * for a message type, such as a message which holds large external data or
+ * an {@link Iterable} with many elements.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ * @param <T> the type of the object whose size is estimated
+ */
+public interface ObjectSizeHint<T> {
+
+    /**
+     * Returns the estimated size of the specified object in bytes, excluding
+     * the event which carries it.  This method must return the same value for
+     * the same object.
+     */
+    int estimateSize(T o);
+}
@@ -0,0 +1,213 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.execution;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+
+/**
+ * An {@link Executor} which maintains the {@link ChannelEvent} order for the
+ * same {@link Channel} and runs the events on a work-stealing
+ * {@link ForkJoinPool}.
+ * <p>
+ * {@link ThreadPoolExecutor}-based executors such as
+ * {@link OrderedMemoryAwareThreadPoolExecutor} feed all threads from a single
+ * queue, which becomes a contention point when the handlers behind the
+ * {@link ExecutionHandler} are short and CPU-bound, such as a decoder.  This
+ * executor keeps a queue per channel and submits a drain task to the pool
+ * whenever a channel without a running drain task receives an event.  Each
+ * pool thread has its own queue of drain tasks, and an idle thread steals
+ * the drain tasks of the busy threads, hence the threads rarely contend with
+ * each other.  A drain task processes the events of its channel one by one,
+ * and it yields to the other channels after a few events by resubmitting
+ * itself, so a busy channel does not monopolize a thread.
+ * <p>
+ * Unlike {@link MemoryAwareThreadPoolExecutor}, this executor does not limit
+ * the amount of the queued events.  Use it for the stages which keep up with
+ * the I/O threads, and use {@link #getCompletedEventCount()} and
+ * {@link #getStealCount()} to monitor how the work is distributed.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ * @apiviz.has java.util.concurrent.ForkJoinPool
+ */
+public class OrderedForkJoinExecutor extends AbstractExecutorService {
+
+    /** The maximum number of events a drain task processes per turn. */
+    private static final int DRAIN_QUANTUM = 64;
+
+    private final ForkJoinPool pool;
+    private final ConcurrentMap<Channel, ChannelDrain> drains =
+        new ConcurrentHashMap<Channel, ChannelDrain>();
+    private final StripedCounter completedEvents = new StripedCounter();
+
+    /**
+     * Creates a new instance whose parallelism is the number of the available
+     * processors.
+     */
+    public OrderedForkJoinExecutor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param parallelism  the number of the threads which process the events
+     */
+    public OrderedForkJoinExecutor(int parallelism) {
+        // asyncMode makes each thread run its own tasks in FIFO order.
+        pool = new ForkJoinPool(
+                parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+                null, true);
+    }
+
+    /**
+     * Returns the {@link ForkJoinPool} which runs the events.
+     */
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Returns the number of the {@link ChannelEvent}s which were processed
+     * so far.  Sample this value periodically to get the throughput.
+     */
+    public long getCompletedEventCount() {
+        return completedEvents.get();
+    }
+
+    /**
+     * Returns the number of the tasks which were stolen by an idle thread
+     * from the queue of another thread so far.
+     */
+    public long getStealCount() {
+        return pool.getStealCount();
+    }
+
+    /**
+     * Executes the specified task concurrently while maintaining the event
+     * order.
+     */
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException("command");
+        }
+
+        if (!(command instanceof ChannelEventRunnable)) {
+            pool.execute(command);
+        } else {
+            ChannelEventRunnable r = (ChannelEventRunnable) command;
+            getOrderedExecutor(r.getEvent().getChannel()).execute(command);
+        }
+    }
+
+    private Executor getOrderedExecutor(Channel channel) {
+        ChannelDrain drain = drains.get(channel);
+        if (drain == null) {
+            // No "channelClosed" event follows an event which is fired after
+            // the channel was closed, so its drain retires once drained.
+            drain = new ChannelDrain(channel, !channel.isOpen());
+            ChannelDrain oldDrain = drains.putIfAbsent(channel, drain);
+            if (oldDrain != null) {
+                drain = oldDrain;
+            }
+        }
+        return drain;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public List<Runnable> shutdownNow() {
+        return pool.shutdownNow();
+    }
+
+    public boolean isShutdown() {
+        return pool.isShutdown();
+    }
+
+    public boolean isTerminated() {
+        return pool.isTerminated();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    private final class ChannelDrain extends SerialExecutor {
+        private final Channel channel;
+        private volatile boolean closed;
+
+        ChannelDrain(Channel channel, boolean closed) {
+            this.channel = channel;
+            this.closed = closed;
+        }
+
+        @Override
+        protected void dispatch(Runnable next) {
+            pool.execute(this);
+        }
+
+        @Override
+        protected int getQuantum() {
+            return DRAIN_QUANTUM;
+        }
+
+        @Override
+        protected boolean isRetiring() {
+            return closed;
+        }
+
+        @Override
+        protected void retired() {
+            drains.remove(channel, this);
+        }
+
+        @Override
+        protected void redirect(Runnable task) {
+            getOrderedExecutor(channel).execute(task);
+        }
+
+        @Override
+        protected void afterExecute(Runnable task, Throwable t) {
+            completedEvents.add(1);
+            if (isChannelClosed(task)) {
+                closed = true;
+            }
+        }
+    }
+}
@@ -22,15 +22,17 @@
  */
 package org.jboss.netty.handler.execution;
 
-import java.util.LinkedList;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.MessageEvent;
 
 /**
  * A {@link MemoryAwareThreadPoolExecutor} which maintains the
@@ -52,6 +54,31 @@ import org.jboss.netty.channel.ChannelEvent;
  * Thread Y: --- Channel B (Event 1) --'   '-- Channel A (Event 2) --- Channel A (Event 3) ---&gt;
  * </pre>
  *
+ * <h3>Stripes</h3>
+ * <p>
+ * The events are ordered by a fixed number of <em>stripes</em>, which is
+ * four times the core pool size rounded up to a power of two.  Each channel
+ * is bound to a stripe by its hash code, and each stripe is a lock-free queue
+ * which is run by at most one thread at a time.  Therefore, no object is
+ * created or looked up per channel, and nothing is left behind when a
+ * channel is closed.  The events of the channels which share a stripe are
+ * processed sequentially, hence a channel whose event handler blocks can
+ * delay the events of some other channels.
+ *
+ * <h3>Priority lanes</h3>
+ * <p>
+ * Under heavy load, a {@code "channelClosed"} or {@code "exceptionCaught"}
+ * event can wait a long time behind the {@code "messageReceived"} events of
+ * other channels, which delays the release of the resources of the closed
+ * channel.  If a {@linkplain #setStateEventWeight(int) state event weight}
+ * is set, the stripes are scheduled in two lanes: a stripe whose next event
+ * is not a {@link MessageEvent} is put into the fast lane, and the other
+ * stripes are put into the bulk lane.  The threads take the stripes from the
+ * fast lane the specified number of times as often as from the bulk lane,
+ * and a stripe yields to the other stripes after processing a few events so
+ * that the lanes are interleaved.  The events of the same channel are still
+ * processed in order; only the events of different channels are reordered.
+ *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Trustin Lee (tlee@redhat.com)
  * @author David M. Lloyd (david.lloyd@redhat.com)
@@ -62,8 +89,16 @@ import org.jboss.netty.channel.ChannelEvent;
 public class OrderedMemoryAwareThreadPoolExecutor extends
         MemoryAwareThreadPoolExecutor {
 
-    private final ConcurrentMap<Channel, Executor> childExecutors =
-        new ConcurrentHashMap<Channel, Executor>();
+    /** The maximum number of events a stripe processes per turn in lanes. */
+    private static final int STRIPE_QUANTUM = 16;
+
+    private final Stripe[] stripes;
+
+    private volatile int stateEventWeight;
+    private final Queue<Stripe> fastLane = new ConcurrentLinkedQueue<Stripe>();
+    private final Queue<Stripe> bulkLane = new ConcurrentLinkedQueue<Stripe>();
+    private final AtomicInteger laneTurn = new AtomicInteger();
+    private final Runnable laneDispatcher = new LaneDispatcher();
 
     /**
      * Creates a new instance.
@@ -77,6 +112,7 @@ public class OrderedMemoryAwareThreadPoolExecutor extends
     public OrderedMemoryAwareThreadPoolExecutor(
             int corePoolSize, long maxChannelMemorySize, long maxTotalMemorySize) {
         super(corePoolSize, maxChannelMemorySize, maxTotalMemorySize);
+        stripes = newStripes(corePoolSize);
     }
 
     /**
@@ -95,6 +131,7 @@ public class OrderedMemoryAwareThreadPoolExecutor extends
             long keepAliveTime, TimeUnit unit) {
         super(corePoolSize, maxChannelMemorySize, maxTotalMemorySize,
                 keepAliveTime, unit);
+        stripes = newStripes(corePoolSize);
     }
 
     /**
@@ -114,6 +151,7 @@ public class OrderedMemoryAwareThreadPoolExecutor extends
             long keepAliveTime, TimeUnit unit, ThreadFactory threadFactory) {
         super(corePoolSize, maxChannelMemorySize, maxTotalMemorySize,
                 keepAliveTime, unit, threadFactory);
+        stripes = newStripes(corePoolSize);
     }
 
     /**
@@ -135,6 +173,7 @@ public class OrderedMemoryAwareThreadPoolExecutor extends
             ObjectSizeEstimator objectSizeEstimator, ThreadFactory threadFactory) {
         super(corePoolSize, maxChannelMemorySize, maxTotalMemorySize,
                 keepAliveTime, unit, objectSizeEstimator, threadFactory);
+        stripes = newStripes(corePoolSize);
     }
 
     /**
@@ -151,79 +190,143 @@ public class OrderedMemoryAwareThreadPoolExecutor extends
         }
     }
 
-    private Executor getOrderedExecutor(Channel channel) {
-        Executor executor = childExecutors.get(channel);
-        if (executor == null) {
-            executor = new ChildExecutor();
-            Executor oldExecutor = childExecutors.putIfAbsent(channel, executor);
-            if (oldExecutor != null) {
-                executor = oldExecutor;
-            }
+    private Stripe[] newStripes(int corePoolSize) {
+        int stripeCount = 1;
+        while (stripeCount < corePoolSize * 4) {
+            stripeCount <<= 1;
+        }
+
+        Stripe[] stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripes.length; i ++) {
+            stripes[i] = new Stripe();
         }
+        return stripes;
+    }
+
+    /**
+     * Returns the number of the stripes which order the events.
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Returns how many times as often the stripes with a state event are
+     * scheduled as the stripes with a message event, or {@code 0} if the
+     * priority lanes are disabled.
+     */
+    public int getStateEventWeight() {
+        return stateEventWeight;
+    }
 
-        // Remove the entry when the channel closes.
-        if (!channel.isOpen()) {
-            childExecutors.remove(channel);
+    /**
+     * Sets how many times as often the stripes with a state event are
+     * scheduled as the stripes with a message event.  Specify {@code 0} to
+     * disable the priority lanes, which is the default.
+     */
+    public void setStateEventWeight(int stateEventWeight) {
+        if (stateEventWeight < 0) {
+            throw new IllegalArgumentException(
+                    "stateEventWeight: " + stateEventWeight);
         }
-        return executor;
+        this.stateEventWeight = stateEventWeight;
+    }
+
+    private Executor getOrderedExecutor(Channel channel) {
+        int h = channel.hashCode();
+        h ^= h >>> 20 ^ h >>> 12;
+        h ^= h >>> 7 ^ h >>> 4;
+        return stripes[h & stripes.length - 1];
     }
 
     @Override
     protected boolean shouldCount(Runnable task) {
-        if (task instanceof ChildExecutor) {
+        if (task instanceof Stripe || task instanceof LaneDispatcher) {
             return false;
         }
 
         return super.shouldCount(task);
     }
 
-    private class ChildExecutor implements Executor, Runnable {
-        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+    private static boolean isStateEvent(Runnable task) {
+        return task instanceof ChannelEventRunnable &&
+               !(((ChannelEventRunnable) task).getEvent() instanceof MessageEvent);
+    }
+
+    /**
+     * Runs the stripe at the head of the fast or bulk lane.  One dispatcher
+     * is run per stripe put into a lane, hence a dispatcher usually finds a
+     * stripe.  It does nothing if both lanes are empty.
+     */
+    private final class LaneDispatcher implements Runnable {
 
-        ChildExecutor() {
+        LaneDispatcher() {
             super();
         }
 
-        public void execute(Runnable command) {
-            boolean needsExecution;
-            synchronized (tasks) {
-                needsExecution = tasks.isEmpty();
-                tasks.add(command);
+        public void run() {
+            int weight = Math.max(1, stateEventWeight);
+            boolean bulkTurn =
+                (laneTurn.getAndIncrement() & Integer.MAX_VALUE) % (weight + 1) == weight;
+            Queue<Stripe> first = bulkTurn? bulkLane : fastLane;
+            Queue<Stripe> second = bulkTurn? fastLane : bulkLane;
+            Stripe stripe = first.poll();
+            if (stripe == null) {
+                stripe = second.poll();
             }
-
-            if (needsExecution) {
-                doUnorderedExecute(this);
+            if (stripe != null) {
+                stripe.run();
             }
         }
+    }
 
-        public void run() {
-            Thread thread = Thread.currentThread();
-            for (;;) {
-                final Runnable task;
-                synchronized (tasks) {
-                    task = tasks.getFirst();
-                }
+    private final class Stripe extends SerialExecutor {
 
-                boolean ran = false;
-                OrderedMemoryAwareThreadPoolExecutor.this.beforeExecute(thread, task);
-                try {
-                    task.run();
-                    ran = true;
-                    OrderedMemoryAwareThreadPoolExecutor.this.afterExecute(task, null);
-                } catch (RuntimeException e) {
-                    if (!ran) {
-                        OrderedMemoryAwareThreadPoolExecutor.this.afterExecute(task, e);
-                    }
+        Stripe() {
+            super();
+        }
+
+        /**
+         * Submits this stripe to the pool, via a lane if the lanes are
+         * enabled.
+         */
+        @Override
+        protected void dispatch(Runnable next) {
+            if (stateEventWeight == 0) {
+                doUnorderedExecute(this);
+                return;
+            }
+
+            Queue<Stripe> lane = isStateEvent(next)? fastLane : bulkLane;
+            lane.offer(this);
+            try {
+                doUnorderedExecute(laneDispatcher);
+            } catch (RejectedExecutionException e) {
+                if (lane.remove(this)) {
                     throw e;
-                } finally {
-                    synchronized (tasks) {
-                        tasks.removeFirst();
-                        if (tasks.isEmpty()) {
-                            break;
-                        }
-                    }
                 }
+
+                // A dispatcher submitted for another stripe has taken this
+                // one, which is therefore dispatched.  Run the dispatcher of
+                // the stripe left behind in this thread instead.
+                laneDispatcher.run();
             }
         }
+
+        @Override
+        protected int getQuantum() {
+            // Yield to the stripes in the lanes.
+            return stateEventWeight == 0? Integer.MAX_VALUE : STRIPE_QUANTUM;
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable task) {
+            OrderedMemoryAwareThreadPoolExecutor.this.beforeExecute(t, task);
+        }
+
+        @Override
+        protected void afterExecute(Runnable task, Throwable t) {
+            OrderedMemoryAwareThreadPoolExecutor.this.afterExecute(task, t);
+        }
     }
 }
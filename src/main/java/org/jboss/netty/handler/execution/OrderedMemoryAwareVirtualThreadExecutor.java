@@ -0,0 +1,317 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.execution;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+
+/**
+ * A {@link MemoryAwareThreadPoolExecutor} which maintains the
+ * {@link ChannelEvent} order for the same {@link Channel} and runs the events
+ * on <em>virtual threads</em> if the Java runtime supports them.
+ * <p>
+ * Unlike {@link OrderedMemoryAwareThreadPoolExecutor}, which shares a fixed
+ * number of stripes between the channels, this executor orders the events of
+ * each channel separately, and the events of a channel are processed by a
+ * thread of their own while the channel has queued events.  A handler which
+ * blocks, for example on a JDBC call, therefore delays only the events of its
+ * own channel.  With virtual threads, thousands of handlers can block at the
+ * same time without tuning the size of the pool, because a blocked virtual
+ * thread does not occupy a platform thread.
+ * <p>
+ * A virtual thread is started whenever a channel without a running thread
+ * receives an event, and it terminates as soon as the queued events of the
+ * channel are processed, hence no idle thread is kept.  If virtual threads
+ * are not supported (see {@link #isVirtualThreadSupported()}), this executor
+ * falls back to a pool of {@code corePoolSize} platform threads, in which
+ * case a blocking handler holds a platform thread as usual.  The tasks which
+ * are not a {@link ChannelEventRunnable} are always run by the platform
+ * threads.  The per-channel and per-executor memory limits are applied in
+ * all cases.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ */
+public class OrderedMemoryAwareVirtualThreadExecutor extends
+        MemoryAwareThreadPoolExecutor {
+
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY =
+        newVirtualThreadFactory();
+
+    /**
+     * Returns the factory of virtual threads via reflection, because the
+     * {@code Thread.ofVirtual()} API is available since Java 21 only.
+     */
+    private static ThreadFactory newVirtualThreadFactory() {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(
+                    builder, "netty-virtual-", Long.valueOf(0));
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            // Not supported or not enabled.
+            return null;
+        }
+    }
+
+    /**
+     * Returns {@code true} if and only if the current Java runtime supports
+     * virtual threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    private final ConcurrentMap<Channel, ChannelWorker> workers =
+        new ConcurrentHashMap<Channel, ChannelWorker>();
+    /** The number of the running virtual threads. */
+    private final AtomicInteger virtualThreads = new AtomicInteger();
+    private final Object terminationLock = new Object();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param corePoolSize          the maximum number of active platform threads,
+     *                              which is used only if virtual threads are
+     *                              not supported
+     * @param maxChannelMemorySize  the maximum total size of the queued events per channel.
+     *                              Specify {@code 0} to disable.
+     * @param maxTotalMemorySize    the maximum total size of the queued events for this pool
+     *                              Specify {@code 0} to disable.
+     */
+    public OrderedMemoryAwareVirtualThreadExecutor(
+            int corePoolSize, long maxChannelMemorySize, long maxTotalMemorySize) {
+        this(corePoolSize, maxChannelMemorySize, maxTotalMemorySize, 30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param corePoolSize          the maximum number of active platform threads,
+     *                              which is used only if virtual threads are
+     *                              not supported
+     * @param maxChannelMemorySize  the maximum total size of the queued events per channel.
+     *                              Specify {@code 0} to disable.
+     * @param maxTotalMemorySize    the maximum total size of the queued events for this pool
+     *                              Specify {@code 0} to disable.
+     * @param keepAliveTime         the amount of time for an inactive thread to shut itself down
+     * @param unit                  the {@link TimeUnit} of {@code keepAliveTime}
+     */
+    public OrderedMemoryAwareVirtualThreadExecutor(
+            int corePoolSize, long maxChannelMemorySize, long maxTotalMemorySize,
+            long keepAliveTime, TimeUnit unit) {
+        this(corePoolSize, maxChannelMemorySize, maxTotalMemorySize,
+                keepAliveTime, unit, new DefaultObjectSizeEstimator());
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param corePoolSize          the maximum number of active platform threads,
+     *                              which is used only if virtual threads are
+     *                              not supported
+     * @param maxChannelMemorySize  the maximum total size of the queued events per channel.
+     *                              Specify {@code 0} to disable.
+     * @param maxTotalMemorySize    the maximum total size of the queued events for this pool
+     *                              Specify {@code 0} to disable.
+     * @param keepAliveTime         the amount of time for an inactive thread to shut itself down
+     * @param unit                  the {@link TimeUnit} of {@code keepAliveTime}
+     * @param objectSizeEstimator   the {@link ObjectSizeEstimator} of this pool
+     */
+    public OrderedMemoryAwareVirtualThreadExecutor(
+            int corePoolSize, long maxChannelMemorySize, long maxTotalMemorySize,
+            long keepAliveTime, TimeUnit unit, ObjectSizeEstimator objectSizeEstimator) {
+        super(corePoolSize, maxChannelMemorySize, maxTotalMemorySize,
+                keepAliveTime, unit, objectSizeEstimator,
+                Executors.defaultThreadFactory());
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return super.isTerminated() && virtualThreads.get() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!super.awaitTermination(timeout, unit)) {
+            return false;
+        }
+
+        synchronized (terminationLock) {
+            while (virtualThreads.get() != 0) {
+                long waitTime = deadline - System.nanoTime();
+                if (waitTime <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(terminationLock, waitTime);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Executes the specified task concurrently while maintaining the event
+     * order.
+     */
+    @Override
+    protected void doExecute(Runnable task) {
+        if (!(task instanceof ChannelEventRunnable)) {
+            doUnorderedExecute(task);
+        } else {
+            ChannelEventRunnable r = (ChannelEventRunnable) task;
+            getOrderedExecutor(r.getEvent().getChannel()).execute(task);
+        }
+    }
+
+    private Executor getOrderedExecutor(Channel channel) {
+        ChannelWorker worker = workers.get(channel);
+        if (worker == null) {
+            // No "channelClosed" event follows an event which is fired after
+            // the channel was closed, so its worker retires once drained.
+            worker = new ChannelWorker(channel, !channel.isOpen());
+            ChannelWorker oldWorker = workers.putIfAbsent(channel, worker);
+            if (oldWorker != null) {
+                worker = oldWorker;
+            }
+        }
+        return worker;
+    }
+
+    @Override
+    protected boolean shouldCount(Runnable task) {
+        if (task instanceof ChannelWorker) {
+            return false;
+        }
+
+        return super.shouldCount(task);
+    }
+
+    /**
+     * Runs the specified worker on a new virtual thread.  A virtual thread is
+     * cheap enough to be created whenever a channel has new events, hence no
+     * idle thread is kept around.
+     */
+    void startVirtualThread(ChannelWorker worker) {
+        virtualThreads.incrementAndGet();
+        if (isShutdown()) {
+            virtualThreadTerminated();
+            throw new RejectedExecutionException("shut down");
+        }
+
+        boolean started = false;
+        try {
+            VIRTUAL_THREAD_FACTORY.newThread(worker).start();
+            started = true;
+        } finally {
+            if (!started) {
+                virtualThreadTerminated();
+            }
+        }
+    }
+
+    void virtualThreadTerminated() {
+        if (virtualThreads.decrementAndGet() == 0) {
+            synchronized (terminationLock) {
+                terminationLock.notifyAll();
+            }
+        }
+    }
+
+    private final class ChannelWorker extends SerialExecutor {
+        private final Channel channel;
+        private volatile boolean closed;
+
+        ChannelWorker(Channel channel, boolean closed) {
+            this.channel = channel;
+            this.closed = closed;
+        }
+
+        @Override
+        protected void dispatch(Runnable next) {
+            if (isVirtualThreadSupported()) {
+                startVirtualThread(this);
+            } else {
+                doUnorderedExecute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                if (isVirtualThreadSupported()) {
+                    virtualThreadTerminated();
+                }
+            }
+        }
+
+        @Override
+        protected boolean isRetiring() {
+            // Stays in the map until the events queued after the
+            // "channelClosed" event are processed.
+            return closed;
+        }
+
+        @Override
+        protected void retired() {
+            workers.remove(channel, this);
+        }
+
+        @Override
+        protected void redirect(Runnable task) {
+            getOrderedExecutor(channel).execute(task);
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable task) {
+            OrderedMemoryAwareVirtualThreadExecutor.this.beforeExecute(t, task);
+        }
+
+        @Override
+        protected void afterExecute(Runnable task, Throwable t) {
+            try {
+                OrderedMemoryAwareVirtualThreadExecutor.this.afterExecute(task, t);
+            } finally {
+                if (isChannelClosed(task)) {
+                    closed = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.execution;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+
+/**
+ * An {@link Executor} which runs the submitted tasks one by one in the
+ * submission order.  The tasks are queued in a lock-free queue, and this
+ * executor is {@linkplain #dispatch(Runnable) dispatched} to a thread as a
+ * {@link Runnable} whenever a task is submitted while it is not running.
+ * Therefore, the tasks are run by at most one thread at a time, although
+ * not necessarily by the same thread.
+ * <p>
+ * An executor which {@linkplain #isRetiring() is retiring} retires once its
+ * queue is drained, and is never dispatched again.  A task which is submitted
+ * to it afterwards is {@linkplain #redirect(Runnable) redirected} to the
+ * executor which replaces it, so that two executors never run the tasks of
+ * the same key at the same time.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ */
+abstract class SerialExecutor implements Executor, Runnable {
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Object retireLock = new Object();
+    private volatile boolean retired;
+
+    SerialExecutor() {
+        super();
+    }
+
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        if (retired) {
+            synchronized (retireLock) {
+                // The task was not seen by the retiring thread if it is still
+                // in the queue.
+                if (retired && tasks.remove(task)) {
+                    redirect(task);
+                    return;
+                }
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Dispatches this executor unless it is dispatched already.
+     */
+    final void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                dispatch(tasks.peek());
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Submits this executor to a thread which calls {@link #run()}.
+     *
+     * @param next  the task which will be run next
+     */
+    protected abstract void dispatch(Runnable next);
+
+    /**
+     * Returns the maximum number of the tasks which are run before this
+     * executor is dispatched again to let the other executors run, or
+     * {@link Integer#MAX_VALUE} to run until the queue is empty.
+     */
+    protected int getQuantum() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns {@code true} if this executor should retire once its queue is
+     * drained.
+     */
+    protected boolean isRetiring() {
+        return false;
+    }
+
+    /**
+     * Invoked when this executor has retired.  The implementation should
+     * make sure that no task is submitted to this executor anymore.
+     */
+    protected void retired() {
+        // Do nothing by default.
+    }
+
+    /**
+     * Submits the specified task, which was submitted to this executor after
+     * it retired, to the executor which replaces this one.
+     */
+    protected void redirect(Runnable task) {
+        throw new RejectedExecutionException("retired");
+    }
+
+    /**
+     * Invoked before the specified task is run by the specified thread.
+     */
+    protected void beforeExecute(Thread t, Runnable task) {
+        // Do nothing by default.
+    }
+
+    /**
+     * Invoked after the specified task is run, whether it succeeded or
+     * not.
+     *
+     * @param t  the {@link RuntimeException} or {@link Error} which the task
+     *           raised, or {@code null} if it succeeded
+     */
+    protected void afterExecute(Runnable task, Throwable t) {
+        // Do nothing by default.
+    }
+
+    public void run() {
+        Thread thread = Thread.currentThread();
+        for (int quantum = getQuantum();; quantum --) {
+            if (quantum == 0) {
+                Runnable next = tasks.peek();
+                if (next != null) {
+                    try {
+                        dispatch(next);
+                        return;
+                    } catch (RejectedExecutionException e) {
+                        // Shutting down - run the rest in this thread.
+                        quantum = Integer.MAX_VALUE;
+                    }
+                }
+            }
+
+            final Runnable task = tasks.poll();
+            if (task == null) {
+                if (isRetiring()) {
+                    if (retire()) {
+                        // Never dispatched again.
+                        return;
+                    }
+                    continue;
+                }
+
+                scheduled.set(false);
+                // A task might have been added before the flag was
+                // cleared - reschedule to make sure it is not lost.
+                if (!tasks.isEmpty()) {
+                    schedule();
+                }
+                return;
+            }
+
+            boolean ran = false;
+            boolean completed = false;
+            beforeExecute(thread, task);
+            try {
+                task.run();
+                ran = true;
+                afterExecute(task, null);
+                completed = true;
+            } catch (RuntimeException e) {
+                if (!ran) {
+                    afterExecute(task, e);
+                }
+                throw e;
+            } catch (Error e) {
+                if (!ran) {
+                    afterExecute(task, e);
+                }
+                throw e;
+            } finally {
+                if (!completed) {
+                    // Let another thread run the remaining tasks.
+                    scheduled.set(false);
+                    if (!tasks.isEmpty()) {
+                        schedule();
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean retire() {
+        synchronized (retireLock) {
+            // A task submitted concurrently is either seen here, or its
+            // submitter sees the retired flag and redirects the task.
+            retired = true;
+            if (tasks.isEmpty()) {
+                retired();
+                return true;
+            }
+            retired = false;
+            return false;
+        }
+    }
+
+    /**
+     * Returns {@code true} if and only if the specified task delivers a
+     * {@code "channelClosed"} event, which is the last event of a channel.
+     */
+    static boolean isChannelClosed(Runnable task) {
+        if (task instanceof ChannelEventRunnable) {
+            ChannelEvent e = ((ChannelEventRunnable) task).getEvent();
+            if (e instanceof ChannelStateEvent) {
+                ChannelStateEvent se = (ChannelStateEvent) e;
+                return se.getState() == ChannelState.OPEN &&
+                       Boolean.FALSE.equals(se.getValue());
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.execution;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which spreads the updates of different threads over separate
+ * cache lines, so that the threads which update the counter frequently do
+ * not contend with each other.  Reading the value of the counter is more
+ * expensive than updating it, and it is not an atomic snapshot when there
+ * are concurrent updates.
+ * <p>
+ * An update can also be put into the stripe of a key object instead of the
+ * stripe of the current thread, so that an amount added and subtracted by
+ * different threads for the same key stays in one stripe, and the value of
+ * the stripe is meaningful on its own.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ */
+final class StripedCounter {
+
+    /** The distance between two cells, in longs (128 bytes). */
+    private static final int CELL_SPACING = 16;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    StripedCounter() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors()) {
+            stripes <<= 1;
+        }
+        cells = new AtomicLongArray(stripes * CELL_SPACING);
+        mask = stripes - 1;
+    }
+
+    void add(long delta) {
+        long id = Thread.currentThread().getId();
+        int stripe = (int) (id ^ id >>> 32) & mask;
+        cells.getAndAdd(stripe * CELL_SPACING, delta);
+    }
+
+    /**
+     * Adds the specified delta to the stripe of the specified key.
+     *
+     * @return the new value of the stripe
+     */
+    long add(Object key, long delta) {
+        int h = System.identityHashCode(key);
+        h ^= h >>> 16;
+        int stripe = (h ^ h >>> 8) & mask;
+        return cells.addAndGet(stripe * CELL_SPACING, delta);
+    }
+
+    int getStripeCount() {
+        return mask + 1;
+    }
+
+    long get() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += CELL_SPACING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.ssl;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineCoverage;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+
+/**
+ * Creates the client-side {@link SSLEngine}s and {@link SslHandler}s whose
+ * SSL sessions can be resumed when the client connects to the same remote
+ * peer again.
+ * <p>
+ * An {@link SSLContext} caches the client-side sessions (and the session
+ * tickets given by the server) only if the {@link SSLEngine} was created
+ * with the host name and the port of the remote peer, which is what this
+ * factory does.  Therefore, the full handshake is performed only for the
+ * first connection to a remote peer until the cached session expires.
+ *
+ * <h3>Using with {@link ClientBootstrap}</h3>
+ * <p>
+ * The remote address is not known yet when a {@link ClientBootstrap} creates
+ * a pipeline.  Add the handler returned by {@link #newDeferredHandler()}
+ * instead, and it will be replaced with the {@link SslHandler} for the
+ * remote address when the channel is connected:
+ * <pre>
+ * ClientSslEngineFactory sslFactory = new ClientSslEngineFactory(sslContext);
+ * ...
+ * pipeline.addLast("ssl", sslFactory.newDeferredHandler());
+ * pipeline.addLast("handler", new MyHandler());
+ *
+ * // In MyHandler.channelConnected():
+ * ctx.getPipeline().get(SslHandler.class).handshake(e.getChannel());
+ * </pre>
+ *
+ * <h3>Statistics</h3>
+ * <p>
+ * All the {@link SslHandler}s created by this factory report to the same
+ * {@link SslStatistics}, which tells how many handshakes resumed a cached
+ * session.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ * @apiviz.uses org.jboss.netty.handler.ssl.SslHandler
+ * @apiviz.has org.jboss.netty.handler.ssl.SslStatistics
+ */
+public class ClientSslEngineFactory {
+
+    private final SSLContext context;
+    private final SslBufferPool bufferPool;
+    private final SslStatistics statistics = new SslStatistics();
+
+    /**
+     * Creates a new instance which creates the {@link SslHandler}s with the
+     * {@linkplain SslHandler#getDefaultBufferPool() default buffer pool}.
+     *
+     * @param context  the {@link SSLContext} which creates the
+     *                 {@link SSLEngine}s and caches the sessions
+     */
+    public ClientSslEngineFactory(SSLContext context) {
+        this(context, SslHandler.getDefaultBufferPool());
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param context     the {@link SSLContext} which creates the
+     *                    {@link SSLEngine}s and caches the sessions
+     * @param bufferPool  the {@link SslBufferPool} of the {@link SslHandler}s
+     *                    created by this factory
+     */
+    public ClientSslEngineFactory(SSLContext context, SslBufferPool bufferPool) {
+        if (context == null) {
+            throw new NullPointerException("context");
+        }
+        if (bufferPool == null) {
+            throw new NullPointerException("bufferPool");
+        }
+        this.context = context;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Returns the {@link SSLContext} which creates the {@link SSLEngine}s.
+     */
+    public SSLContext getContext() {
+        return context;
+    }
+
+    /**
+     * Returns the client-side session cache of the {@link SSLContext}, whose
+     * size and timeout can be adjusted.
+     */
+    public SSLSessionContext getSessionContext() {
+        return context.getClientSessionContext();
+    }
+
+    /**
+     * Returns the {@link SslStatistics} which the {@link SslHandler}s created
+     * by this factory report to.
+     */
+    public SslStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Creates a new client-mode {@link SSLEngine} for the specified remote
+     * peer.
+     */
+    public SSLEngine newEngine(String host, int port) {
+        if (host == null) {
+            throw new NullPointerException("host");
+        }
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        return engine;
+    }
+
+    /**
+     * Creates a new client-mode {@link SSLEngine} for the specified remote
+     * address.  If the address is an {@link InetSocketAddress}, the session
+     * is looked up by the host name or the IP address which the address was
+     * created from.  No reverse lookup is performed, hence this method never
+     * blocks an I/O thread.
+     */
+    public SSLEngine newEngine(SocketAddress remoteAddress) {
+        if (remoteAddress == null) {
+            throw new NullPointerException("remoteAddress");
+        }
+        if (remoteAddress instanceof InetSocketAddress) {
+            InetSocketAddress a = (InetSocketAddress) remoteAddress;
+            return newEngine(a.getHostString(), a.getPort());
+        }
+
+        // The session can't be resumed without the host name and the port.
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(true);
+        return engine;
+    }
+
+    /**
+     * Creates a new {@link SslHandler} for the specified remote address.
+     */
+    public SslHandler newHandler(SocketAddress remoteAddress) {
+        SslHandler handler = new SslHandler(newEngine(remoteAddress), bufferPool);
+        handler.setStatistics(statistics);
+        return handler;
+    }
+
+    /**
+     * Creates a new handler which replaces itself with the
+     * {@link SslHandler} for the remote address when the channel is
+     * connected.
+     */
+    public ChannelHandler newDeferredHandler() {
+        return new DeferredSslHandler();
+    }
+
+    @ChannelPipelineCoverage("all")
+    private final class DeferredSslHandler implements ChannelUpstreamHandler {
+
+        DeferredSslHandler() {
+            super();
+        }
+
+        public void handleUpstream(
+                ChannelHandlerContext ctx, ChannelEvent evt) throws Exception {
+            if (evt instanceof ChannelStateEvent) {
+                ChannelStateEvent e = (ChannelStateEvent) evt;
+                if (e.getState() == ChannelState.CONNECTED &&
+                    e.getValue() instanceof SocketAddress) {
+                    ctx.getPipeline().replace(
+                            this, ctx.getName(),
+                            newHandler((SocketAddress) e.getValue()));
+                }
+            }
+            ctx.sendUpstream(evt);
+        }
+    }
+}
@@ -22,7 +22,12 @@
  */
 package org.jboss.netty.handler.ssl;
 
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLEngine;
 
@@ -40,6 +45,21 @@ import javax.net.ssl.SSLEngine;
  * buffer for every 'wrap' and 'unwrap' operation wastes a lot of memory
  * bandwidth, resulting in the application performance degradation.
  *
+ * <h3>Thread-local caches</h3>
+ * <p>
+ * Every thread keeps up to {@code 4} released buffers in its own cache
+ * in addition to the shared pool, so that acquiring and releasing a buffer
+ * usually doesn't touch any shared state.  A buffer which doesn't fit into
+ * the cache of the releasing thread goes to the shared pool, which is
+ * bounded by the maximum pool size, and a thread whose cache is empty takes
+ * a buffer from the shared pool.  Neither of them acquires a lock.
+ *
+ * <h3>Direct buffers</h3>
+ * <p>
+ * A pool can be told to allocate direct buffers, which saves the copy
+ * between a heap buffer and the socket when the encrypted data is written
+ * by a transport that writes direct buffers as they are.
+ *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Trustin Lee (tlee@redhat.com)
  *
@@ -50,10 +70,23 @@ public class SslBufferPool {
     // Add 1024 as a room for compressed data.
     private static final int MAX_PACKET_SIZE = 16665 + 1024;
     private static final int DEFAULT_POOL_SIZE = MAX_PACKET_SIZE * 1024;
+    private static final int THREAD_CACHE_SIZE = 4;
 
-    private final ByteBuffer[] pool;
     private final int maxBufferCount;
-    private int index;
+    private final boolean direct;
+
+    private final Queue<ByteBuffer> sharedPool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger sharedPoolCount = new AtomicInteger();
+
+    private final ThreadLocal<ThreadCache> threadCaches = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return newThreadCache();
+        }
+    };
+    private final Queue<ThreadCacheStats> liveThreadCaches = new ConcurrentLinkedQueue<ThreadCacheStats>();
+    private final AtomicLong retiredHitCount = new AtomicLong();
+    private final AtomicLong retiredMissCount = new AtomicLong();
 
     /**
      * Creates a new buffer pool whose size is {@code 18113536}, which can
@@ -63,12 +96,33 @@ public class SslBufferPool {
         this(DEFAULT_POOL_SIZE);
     }
 
+    /**
+     * Creates a new buffer pool whose size is {@code 18113536}, which can
+     * hold {@code 1024} buffers.
+     *
+     * @param direct {@code true} if the pool should allocate direct buffers
+     */
+    public SslBufferPool(boolean direct) {
+        this(DEFAULT_POOL_SIZE, direct);
+    }
+
     /**
      * Creates a new buffer pool.
      *
      * @param maxPoolSize the maximum number of bytes that this pool can hold
      */
     public SslBufferPool(int maxPoolSize) {
+        this(maxPoolSize, false);
+    }
+
+    /**
+     * Creates a new buffer pool.
+     *
+     * @param maxPoolSize the maximum number of bytes that this pool can hold
+     * @param direct      {@code true} if the pool should allocate direct
+     *                    buffers
+     */
+    public SslBufferPool(int maxPoolSize, boolean direct) {
         if (maxPoolSize <= 0) {
             throw new IllegalArgumentException("maxPoolSize: " + maxPoolSize);
         }
@@ -77,15 +131,23 @@ public class SslBufferPool {
         if (maxPoolSize % MAX_PACKET_SIZE != 0) {
             maxBufferCount ++;
         }
-        maxPoolSize = maxBufferCount * MAX_PACKET_SIZE;
 
-        pool = new ByteBuffer[maxBufferCount];
         this.maxBufferCount = maxBufferCount;
+        this.direct = direct;
+    }
+
+    /**
+     * Returns {@code true} if and only if this pool allocates direct buffers.
+     */
+    public boolean isDirect() {
+        return direct;
     }
 
     /**
      * Returns the maximum size of this pool in byte unit.  The returned value
      * can be somewhat different from what was specified in the constructor.
+     * Please note that the buffers in the thread-local caches are not
+     * counted.
      */
     public int getMaxPoolSize() {
         return maxBufferCount * MAX_PACKET_SIZE;
@@ -93,26 +155,139 @@ public class SslBufferPool {
 
     /**
      * Returns the number of bytes which were allocated but have not been
-     * acquired yet.  You can estimate how optimal the specified maximum pool
-     * size is from this value.  If it keeps returning {@code 0}, it means the
-     * pool is getting exhausted.  If it keeps returns a unnecessarily big
-     * value, it means the pool is wasting the heap space.
+     * acquired yet, including the buffers in the thread-local caches.
+     * You can estimate how optimal the specified maximum pool size is from
+     * this value.  If it keeps returning {@code 0}, it means the pool is
+     * getting exhausted.  If it keeps returns a unnecessarily big value, it
+     * means the pool is wasting the heap space.
+     */
+    public int getUnacquiredPoolSize() {
+        int count = sharedPoolCount.get();
+        for (ThreadCacheStats stats: liveThreadCaches) {
+            if (stats.thread.get() == null) {
+                retire(stats);
+            } else {
+                count += stats.size;
+            }
+        }
+        return count * MAX_PACKET_SIZE;
+    }
+
+    /**
+     * Returns the number of the buffer acquisitions which reused a pooled
+     * buffer so far.
+     */
+    public long getHitCount() {
+        long count = retiredHitCount.get();
+        for (ThreadCacheStats stats: liveThreadCaches) {
+            count += stats.hitCount;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of the buffer acquisitions which had to allocate
+     * a new buffer so far.
      */
-    public synchronized int getUnacquiredPoolSize() {
-        return index * MAX_PACKET_SIZE;
+    public long getMissCount() {
+        long count = retiredMissCount.get();
+        for (ThreadCacheStats stats: liveThreadCaches) {
+            count += stats.missCount;
+        }
+        return count;
     }
 
-    synchronized ByteBuffer acquire() {
-        if (index == 0) {
+    ByteBuffer acquire() {
+        ThreadCache cache = threadCaches.get();
+        ThreadCacheStats stats = cache.stats;
+        int size = stats.size;
+        if (size > 0) {
+            ByteBuffer buffer = cache.buffers[-- size];
+            cache.buffers[size] = null;
+            stats.size = size;
+            stats.hitCount ++;
+            buffer.clear();
+            return buffer;
+        }
+
+        ByteBuffer buffer = sharedPool.poll();
+        if (buffer != null) {
+            sharedPoolCount.decrementAndGet();
+            stats.hitCount ++;
+            buffer.clear();
+            return buffer;
+        }
+
+        stats.missCount ++;
+        if (direct) {
+            return ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        } else {
             return ByteBuffer.allocate(MAX_PACKET_SIZE);
+        }
+    }
+
+    void release(ByteBuffer buffer) {
+        ThreadCache cache = threadCaches.get();
+        int size = cache.stats.size;
+        if (size < THREAD_CACHE_SIZE) {
+            cache.buffers[size] = buffer;
+            cache.stats.size = size + 1;
+            return;
+        }
+
+        if (sharedPoolCount.incrementAndGet() <= maxBufferCount) {
+            sharedPool.offer(buffer);
         } else {
-            return (ByteBuffer) pool[-- index].clear();
+            sharedPoolCount.decrementAndGet();
         }
     }
 
-    synchronized void release(ByteBuffer buffer) {
-        if (index < maxBufferCount) {
-            pool[index ++] = buffer;
+    ThreadCache newThreadCache() {
+        // Retire the caches of the dead threads, so that the list of the
+        // caches doesn't grow with the number of the threads ever created.
+        for (ThreadCacheStats stats: liveThreadCaches) {
+            if (stats.thread.get() == null) {
+                retire(stats);
+            }
+        }
+
+        ThreadCache cache = new ThreadCache();
+        liveThreadCaches.offer(cache.stats);
+        return cache;
+    }
+
+    private void retire(ThreadCacheStats stats) {
+        // Two threads could try to retire the same cache at the same time.
+        if (liveThreadCaches.remove(stats)) {
+            retiredHitCount.addAndGet(stats.hitCount);
+            retiredMissCount.addAndGet(stats.missCount);
+        }
+    }
+
+    /**
+     * The buffers are referenced only by the owner thread, so they are
+     * garbage-collected with the thread.
+     */
+    private static final class ThreadCache {
+        final ByteBuffer[] buffers = new ByteBuffer[THREAD_CACHE_SIZE];
+        final ThreadCacheStats stats = new ThreadCacheStats();
+
+        ThreadCache() {
+            super();
+        }
+    }
+
+    /**
+     * Updated only by the owner thread, and read by the statistics getters.
+     */
+    private static final class ThreadCacheStats {
+        final WeakReference<Thread> thread = new WeakReference<Thread>(Thread.currentThread());
+        volatile int size;
+        volatile long hitCount;
+        volatile long missCount;
+
+        ThreadCacheStats() {
+            super();
         }
     }
 }
@@ -26,15 +26,25 @@ import static org.jboss.netty.channel.Channels.*;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLEngineResult.Status;
 
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -88,6 +98,26 @@ import org.jboss.netty.util.ImmediateExecutor;
  * {@link SslHandler} with a new {@link SSLEngine} into the pipeline,
  * and start the handshake process as described in the first section.
  *
+ * <h3>Delegated tasks</h3>
+ * <p>
+ * The expensive part of a handshake, such as the public key operations, is
+ * given as the delegated tasks of the {@link SSLEngine}.  Unless specified
+ * otherwise in the constructor, they are executed by the
+ * {@linkplain #getDefaultDelegatedTaskExecutor() default delegated task executor}
+ * so that the I/O thread is not blocked by them.  While the tasks which were
+ * raised by the received data are running, the channel stops reading, the
+ * received data is kept in order, and the handshake continues once the tasks
+ * are finished.  Specify {@link ImmediateExecutor#INSTANCE} to run the tasks
+ * in the calling thread.
+ *
+ * <h3>Thread safety</h3>
+ * <p>
+ * A write request never blocks on a lock.  It is enqueued, and whichever
+ * thread finds the handler idle becomes the only thread that calls
+ * {@link SSLEngine#wrap(ByteBuffer, ByteBuffer)} until the queue is drained.
+ * The encrypted records are therefore sent downstream in the same order as
+ * the write requests were made, without serializing the writers.
+ *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Trustin Lee (tlee@redhat.com)
  *
@@ -100,6 +130,19 @@ public class SslHandler extends FrameDecoder {
 
     private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
 
+    // The maximum length of the plaintext in a record, and the maximum
+    // number of write requests which are gathered into a record.
+    private static final int MAX_PLAINTEXT_LENGTH = 16384;
+    private static final int MAX_GATHERED_WRITES = 64;
+
+    // The size of the buffer which the received records are decrypted
+    // into, which has room for four full records.
+    private static final int PLAINTEXT_CHUNK_SIZE = 4 * MAX_PLAINTEXT_LENGTH + 1024;
+
+    // The maximum number of the delegated tasks queued per thread of the
+    // default delegated task executor.
+    private static final int MAX_QUEUED_DELEGATED_TASKS_PER_THREAD = 64;
+
     private static SslBufferPool defaultBufferPool;
 
     /**
@@ -113,21 +156,83 @@ public class SslHandler extends FrameDecoder {
         return defaultBufferPool;
     }
 
+    private static Executor defaultDelegatedTaskExecutor;
+
+    /**
+     * Returns the default {@link Executor} which executes the delegated tasks
+     * of the {@link SSLEngine} when no executor is specified in the
+     * constructor.  It is shared by all {@link SslHandler}s and runs at most
+     * as many daemon threads as the number of the available processors.
+     * Its queue is bounded as well.  When the queue is full, the tasks are
+     * executed by the thread which received the data instead.
+     */
+    public static synchronized Executor getDefaultDelegatedTaskExecutor() {
+        if (defaultDelegatedTaskExecutor == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            defaultDelegatedTaskExecutor = new ThreadPoolExecutor(
+                    threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(
+                            threads * MAX_QUEUED_DELEGATED_TASKS_PER_THREAD),
+                    new DelegatedTaskThreadFactory());
+        }
+        return defaultDelegatedTaskExecutor;
+    }
+
     private final SSLEngine engine;
     private final SslBufferPool bufferPool;
     private final Executor delegatedTaskExecutor;
     private final boolean startTls;
 
-    private final Object handshakeLock = new Object();
-    private volatile boolean handshaking;
+    // The future of the handshake in progress, or null if not handshaking.
+    private final AtomicReference<ChannelFuture> pendingHandshakeFuture =
+        new AtomicReference<ChannelFuture>();
     private volatile boolean handshaken;
     private volatile ChannelFuture handshakeFuture;
+    private volatile long handshakeStartTime;
+    private volatile long handshakeStartTimeMillis;
+    private volatile long lastHandshakeTime = -1;
+    private volatile SslStatistics statistics;
 
     private final AtomicBoolean sentFirstMessage = new AtomicBoolean();
     private final AtomicBoolean sentCloseNotify = new AtomicBoolean();
     final Queue<ChannelFuture> closeFutures = new ConcurrentLinkedQueue<ChannelFuture>();
-    private final Queue<PendingWrite> pendingUnencryptedWrites = new LinkedList<PendingWrite>();
-    private final Queue<MessageEvent> pendingEncryptedWrites = new LinkedList<MessageEvent>();
+    private final Queue<PendingWrite> pendingUnencryptedWrites = new ConcurrentLinkedQueue<PendingWrite>();
+    private final Queue<ChannelFuture> pendingNonAppDataWrites = new ConcurrentLinkedQueue<ChannelFuture>();
+
+    // The number of wrap requests made since the current wrapping thread
+    // took over.  Only the thread which increases it from 0 calls wrap().
+    private final AtomicInteger wrapRequests = new AtomicInteger();
+    private volatile Thread wrapThread;
+
+    // The received data is kept in suspendedInbound while the delegated
+    // tasks raised by the received data are running or another thread is
+    // wrapping what the SSLEngine asked for, and until it is decoded
+    // completely.  All are guarded by inboundLock, which is acquired only
+    // while inboundSuspended is true.
+    private final Object inboundLock = new Object();
+    private volatile boolean inboundSuspended;
+    private ChannelBuffer suspendedInbound;
+    private boolean delegatedTasksRunning;
+    private boolean awaitingWrap;
+
+    // The frames decoded from suspendedInbound are enqueued under
+    // inboundLock and fired after it is released.  Only the thread which
+    // increases fireRequests from 0 fires them, hence in order.
+    private final Queue<ChannelBuffer> suspendedFrames = new ConcurrentLinkedQueue<ChannelBuffer>();
+    private final AtomicInteger fireRequests = new AtomicInteger();
+
+    // Accessed only by decode().  The decoded frames are the slices of
+    // plaintextChunk, which is replaced when full rather than reused.
+    private ChannelBuffer plaintextChunk;
+    private volatile boolean unwrapNeedsFullBuffer;
+    // Set when unwrap() stopped to wait for another thread, with the number
+    // of the bytes it left unconsumed.  Accessed only by decode().
+    private boolean unwrapDeferred;
+    private int unwrapDeferredBytes;
+
+    // Accessed only by the wrapping thread.
+    private final PendingWrite[] gatheredWrites = new PendingWrite[MAX_GATHERED_WRITES];
+    private final ByteBuffer[] gatheredAppBufs = new ByteBuffer[MAX_GATHERED_WRITES];
 
     /**
      * Creates a new instance.
@@ -135,7 +240,7 @@ public class SslHandler extends FrameDecoder {
      * @param engine  the {@link SSLEngine} this handler will use
      */
     public SslHandler(SSLEngine engine) {
-        this(engine, getDefaultBufferPool(), ImmediateExecutor.INSTANCE);
+        this(engine, getDefaultBufferPool(), getDefaultDelegatedTaskExecutor());
     }
 
     /**
@@ -146,7 +251,7 @@ public class SslHandler extends FrameDecoder {
      *                    acquire the buffers required by the {@link SSLEngine}
      */
     public SslHandler(SSLEngine engine, SslBufferPool bufferPool) {
-        this(engine, bufferPool, ImmediateExecutor.INSTANCE);
+        this(engine, bufferPool, getDefaultDelegatedTaskExecutor());
     }
 
     /**
@@ -170,7 +275,7 @@ public class SslHandler extends FrameDecoder {
      *                    encrypted by the {@link SSLEngine}
      */
     public SslHandler(SSLEngine engine, SslBufferPool bufferPool, boolean startTls) {
-        this(engine, bufferPool, startTls, ImmediateExecutor.INSTANCE);
+        this(engine, bufferPool, startTls, getDefaultDelegatedTaskExecutor());
     }
 
     /**
@@ -256,6 +361,32 @@ public class SslHandler extends FrameDecoder {
         return engine;
     }
 
+    /**
+     * Returns the {@link SslStatistics} which this handler reports to, or
+     * {@code null} if this handler does not report to any.
+     */
+    public SslStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Sets the {@link SslStatistics} which this handler reports to.
+     * Specify {@code null} to stop reporting.
+     */
+    public void setStatistics(SslStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Returns the time taken by the last successful handshake which was
+     * started by {@link #handshake(Channel)} in nanoseconds, measured from
+     * the call to the completion of the handshake.  {@code -1} is returned
+     * if no such handshake has been completed yet.
+     */
+    public long getLastHandshakeTime() {
+        return lastHandshakeTime;
+    }
+
     /**
      * Starts an SSL / TLS handshake for the specified channel.
      *
@@ -263,13 +394,20 @@ public class SslHandler extends FrameDecoder {
      *         succeeds or fails.
      */
     public ChannelFuture handshake(Channel channel) throws SSLException {
-        ChannelFuture handshakeFuture;
-        synchronized (handshakeLock) {
-            if (handshaking) {
-                return this.handshakeFuture;
-            } else {
-                handshakeFuture = this.handshakeFuture = newHandshakeFuture(channel);
-                handshaking = true;
+        ChannelFuture handshakeFuture = null;
+        for (;;) {
+            ChannelFuture pendingHandshakeFuture = this.pendingHandshakeFuture.get();
+            if (pendingHandshakeFuture != null) {
+                return pendingHandshakeFuture;
+            }
+            if (handshakeFuture == null) {
+                handshakeFuture = newHandshakeFuture(channel);
+            }
+            if (this.pendingHandshakeFuture.compareAndSet(null, handshakeFuture)) {
+                this.handshakeFuture = handshakeFuture;
+                handshakeStartTimeMillis = System.currentTimeMillis();
+                handshakeStartTime = System.nanoTime();
+                break;
             }
         }
 
@@ -328,11 +466,8 @@ public class SslHandler extends FrameDecoder {
 
         // Otherwise, all messages are encrypted.
         ChannelBuffer msg = (ChannelBuffer) e.getMessage();
-        PendingWrite pendingWrite =
-            new PendingWrite(evt.getFuture(), msg.toByteBuffer(msg.readerIndex(), msg.readableBytes()));
-        synchronized (pendingUnencryptedWrites) {
-            pendingUnencryptedWrites.offer(pendingWrite);
-        }
+        pendingUnencryptedWrites.offer(new PendingWrite(
+                evt.getFuture(), msg.toByteBuffer(msg.readerIndex(), msg.readableBytes())));
 
         wrap(context, evt.getChannel());
     }
@@ -343,14 +478,13 @@ public class SslHandler extends FrameDecoder {
 
         // Make sure the handshake future is notified when a connection has
         // been closed during handshake.
-        synchronized (handshakeLock) {
-            if (handshaking) {
-                handshakeFuture.setFailure(new ClosedChannelException());
-            }
+        ChannelFuture pendingHandshakeFuture = this.pendingHandshakeFuture.getAndSet(null);
+        if (pendingHandshakeFuture != null) {
+            pendingHandshakeFuture.setFailure(new ClosedChannelException());
         }
 
         super.channelDisconnected(ctx, e);
-        unwrap(ctx, e.getChannel(), ChannelBuffers.EMPTY_BUFFER, 0, 0);
+        unwrap(ctx, e.getChannel(), ChannelBuffers.EMPTY_BUFFER, 0, 0, false);
         engine.closeOutbound();
         if (!sentCloseNotify.get() && handshaken) {
             try {
@@ -364,6 +498,128 @@ public class SslHandler extends FrameDecoder {
     @Override
     protected Object decode(
             ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (inboundSuspended) {
+            boolean suspended = false;
+            try {
+                synchronized (inboundLock) {
+                    if (inboundSuspended) {
+                        suspended = true;
+                        suspendedInbound.writeBytes(buffer);
+                        if (!delegatedTasksRunning && !awaitingWrap) {
+                            decodeSuspendedInbound(ctx, channel);
+                        }
+                    }
+                }
+            } finally {
+                if (suspended) {
+                    fireSuspendedFrames(ctx, channel);
+                }
+            }
+            if (suspended) {
+                return null;
+            }
+        }
+
+        ChannelBuffer frame = decodeRecord(ctx, channel, buffer);
+        if (unwrapDeferred) {
+            unwrapDeferred = false;
+            // Keep the rest until the wrapping thread is done with what the
+            // SSLEngine is waiting for.  It decodes the rest when done.
+            synchronized (inboundLock) {
+                if (!inboundSuspended) {
+                    suspendedInbound = ChannelBuffers.dynamicBuffer();
+                    inboundSuspended = true;
+                }
+                if (frame != null) {
+                    // Fired before the frames decoded from the rest.
+                    suspendedFrames.offer(frame);
+                    frame = null;
+                }
+                suspendedInbound.writeBytes(buffer);
+                awaitingWrap = true;
+            }
+            if (wrapRequests.get() == 0) {
+                // The wrapping thread finished before it saw awaitingWrap.
+                resumeInboundAfterWrap(ctx, channel);
+            }
+            fireSuspendedFrames(ctx, channel);
+        }
+        return frame;
+    }
+
+    /**
+     * Decodes the suspended inbound data into {@link #suspendedFrames}.
+     * The caller holds {@link #inboundLock}, and calls
+     * {@link #fireSuspendedFrames(ChannelHandlerContext, Channel)} after
+     * releasing it.
+     */
+    private void decodeSuspendedInbound(
+            ChannelHandlerContext ctx, Channel channel) throws SSLException {
+        ChannelBuffer inbound = suspendedInbound;
+        while (!delegatedTasksRunning && !awaitingWrap && inbound.readable()) {
+            int oldReaderIndex = inbound.readerIndex();
+            ChannelBuffer frame = decodeRecord(ctx, channel, inbound);
+            boolean deferred = unwrapDeferred;
+            if (deferred) {
+                unwrapDeferred = false;
+                // inboundLock is held, so the wrapping thread will see
+                // awaitingWrap if it has not finished yet.  Otherwise, the
+                // SSLEngine can make progress now.
+                awaitingWrap = wrapRequests.get() != 0;
+            }
+            if (frame != null) {
+                suspendedFrames.offer(frame);
+            } else if (!deferred && oldReaderIndex == inbound.readerIndex()) {
+                // A partial record - wait for the rest.
+                break;
+            }
+        }
+        inbound.discardReadBytes();
+    }
+
+    /**
+     * Fires the frames decoded from the suspended inbound data, and stops
+     * suspending the inbound data once all of them are fired.  It must be
+     * called without holding {@link #inboundLock}.
+     */
+    private void fireSuspendedFrames(ChannelHandlerContext ctx, Channel channel) {
+        if (fireRequests.getAndIncrement() != 0) {
+            // Another thread is firing at the moment.  It will fire what the
+            // caller has enqueued before it stops firing.
+            return;
+        }
+
+        int requests = 1;
+        for (;;) {
+            for (;;) {
+                ChannelBuffer frame = suspendedFrames.poll();
+                if (frame == null) {
+                    break;
+                }
+                fireMessageReceived(ctx, channel, frame);
+            }
+
+            // The frames are enqueued only while inboundSuspended is true,
+            // so the received data is decoded and fired directly again only
+            // after the last frame is fired.
+            synchronized (inboundLock) {
+                if (inboundSuspended &&
+                    !delegatedTasksRunning && !awaitingWrap &&
+                    !suspendedInbound.readable() && suspendedFrames.isEmpty()) {
+                    suspendedInbound = null;
+                    inboundSuspended = false;
+                }
+            }
+
+            requests = fireRequests.addAndGet(-requests);
+            if (requests == 0) {
+                break;
+            }
+        }
+    }
+
+    private ChannelBuffer decodeRecord(
+            ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws SSLException {
         if (buffer.readableBytes() < 2) {
             return null;
         }
@@ -386,182 +642,292 @@ public class SslHandler extends FrameDecoder {
 
         ChannelBuffer frame;
         try {
-            frame = unwrap(ctx, channel, buffer, buffer.readerIndex(), packetLength);
+            frame = unwrap(ctx, channel, buffer, buffer.readerIndex(), packetLength, true);
         } finally {
-            buffer.skipBytes(packetLength);
+            if (unwrapDeferred) {
+                // The SSLEngine consumes a record either completely or not
+                // at all, so the rest starts at the record boundary.
+                buffer.skipBytes(packetLength - unwrapDeferredBytes);
+            } else {
+                buffer.skipBytes(packetLength);
+            }
         }
 
         if (frame == null && engine.isInboundDone()) {
-            synchronized (closeFutures) {
+            for (;;) {
+                ChannelFuture future = closeFutures.poll();
+                if (future == null) {
+                    break;
+                }
+                Channels.close(ctx, channel, future);
+            }
+        }
+        return frame;
+    }
+
+    private void wrap(ChannelHandlerContext context, Channel channel)
+            throws SSLException {
+
+        if (wrapRequests.getAndIncrement() != 0) {
+            // Another thread is wrapping at the moment.  It will pick up
+            // what the caller has enqueued before it stops wrapping.
+            return;
+        }
+
+        final Thread currentThread = Thread.currentThread();
+        int requests = 1;
+        Throwable cause = null;
+        try {
+            for (;;) {
+                wrapThread = currentThread;
+                flushPendingWrites(context, channel);
+                wrapThread = null;
+
+                requests = wrapRequests.addAndGet(-requests);
+                if (requests == 0) {
+                    break;
+                }
+            }
+        } catch (SSLException e) {
+            if (pendingHandshakeFuture.get() != null) {
+                setHandshakeFailure(channel, e);
+            }
+            cause = e;
+            throw e;
+        } catch (RuntimeException e) {
+            cause = e;
+            throw e;
+        } finally {
+            if (cause != null) {
+                wrapThread = null;
+                // Fail what the other threads enqueue until they see this
+                // thread has stopped wrapping, so that no write is left in
+                // the queue without a wrapping thread.
                 for (;;) {
-                    ChannelFuture future = closeFutures.poll();
-                    if (future == null) {
+                    failPendingWrites(cause);
+                    requests = wrapRequests.addAndGet(-requests);
+                    if (requests == 0) {
                         break;
                     }
-                    Channels.close(ctx, channel, future);
                 }
             }
+            if (inboundSuspended) {
+                // The received data might be waiting for this thread.
+                resumeInboundAfterWrap(context, channel);
+            }
         }
-        return frame;
     }
 
-    private ChannelFuture wrap(ChannelHandlerContext context, Channel channel)
+    private void flushPendingWrites(ChannelHandlerContext context, Channel channel)
             throws SSLException {
 
-        ChannelFuture future = null;
-        ChannelBuffer msg;
-        ByteBuffer outNetBuf = bufferPool.acquire();
-        boolean success = true;
-        boolean offered = false;
+        // The order of the non-application data (i.e. handshake and
+        // close_notify) does not depend on the order of the write requests,
+        // so it is never held back by the application data which is waiting
+        // for the handshake.
+        for (;;) {
+            ChannelFuture future = pendingNonAppDataWrites.poll();
+            if (future == null) {
+                break;
+            }
+            wrapNonAppData(context, channel, future);
+        }
+
+        // As many records as the buffer can hold are written at once, and
+        // small write requests are gathered into one record.
+        final int packetBufferSize = engine.getSession().getPacketBufferSize();
+        ByteBuffer outNetBuf = null;
+        List<ChannelFuture> futures = null;
+        Throwable cause = null;
         try {
             loop:
             for (;;) {
-                // Acquire a lock to make sure unencrypted data is polled
-                // in order and their encrypted counterpart is offered in
-                // order.
-                synchronized (pendingUnencryptedWrites) {
-                    PendingWrite pendingWrite = pendingUnencryptedWrites.peek();
-                    if (pendingWrite == null) {
+                // Only the wrapping thread polls the queue, hence the
+                // unencrypted data is wrapped and written in order.
+                int count = 0;
+                int bytes = 0;
+                for (PendingWrite pendingWrite: pendingUnencryptedWrites) {
+                    gatheredWrites[count] = pendingWrite;
+                    gatheredAppBufs[count ++] = pendingWrite.outAppBuf;
+                    bytes += pendingWrite.outAppBuf.remaining();
+                    if (count == MAX_GATHERED_WRITES || bytes >= MAX_PLAINTEXT_LENGTH) {
                         break;
                     }
+                }
+                if (count == 0) {
+                    break;
+                }
 
-                    ByteBuffer outAppBuf = pendingWrite.outAppBuf;
+                if (outNetBuf == null) {
+                    outNetBuf = bufferPool.acquire();
+                    futures = new ArrayList<ChannelFuture>(count);
+                }
 
-                    SSLEngineResult result;
-                    try {
-                        result = engine.wrap(outAppBuf, outNetBuf);
-                    } finally {
-                        if (!outAppBuf.hasRemaining()) {
-                            pendingUnencryptedWrites.remove();
-                        }
+                SSLEngineResult result = wrap(gatheredAppBufs, count, outNetBuf);
+
+                // Remove the write requests which were wrapped completely.
+                // Their futures are notified when the batch is written.
+                int i = 0;
+                for (; i < count && !gatheredAppBufs[i].hasRemaining(); i ++) {
+                    pendingUnencryptedWrites.remove();
+                    futures.add(gatheredWrites[i].future);
+                }
+
+                if (result.bytesProduced() > 0) {
+                    if (outNetBuf.remaining() < packetBufferSize) {
+                        writeEncrypted(context, channel, outNetBuf, futures);
+                        outNetBuf = null;
+                        futures = null;
                     }
-                    if (result.bytesProduced() > 0) {
-                        outNetBuf.flip();
-                        msg = ChannelBuffers.buffer(outNetBuf.remaining());
-                        msg.writeBytes(outNetBuf.array(), 0, msg.capacity());
-                        outNetBuf.clear();
+                    continue;
+                }
 
-                        if (pendingWrite.outAppBuf.hasRemaining()) {
-                            // pendingWrite's future shouldn't be notified if
-                            // only partial data is written.
-                            future = succeededFuture(channel);
-                        } else {
-                            future = pendingWrite.future;
-                        }
+                switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    writeEncrypted(context, channel, outNetBuf, futures);
+                    outNetBuf = null;
+                    futures = null;
+                    continue;
+                case CLOSED:
+                    for (; i < count; i ++) {
+                        pendingUnencryptedWrites.remove();
+                        gatheredWrites[i].future.setFailure(
+                                new IllegalStateException("SSLEngine already closed"));
+                    }
+                    continue;
+                }
 
-                        MessageEvent encryptedWrite = messageEvent(channel, future, msg);
-                        if (Thread.holdsLock(pendingEncryptedWrites)) {
-                            pendingEncryptedWrites.offer(encryptedWrite);
-                        } else {
-                            synchronized (pendingEncryptedWrites) {
-                                pendingEncryptedWrites.offer(encryptedWrite);
-                            }
-                        }
-                        offered = true;
-                    } else {
-                        switch (result.getHandshakeStatus()) {
-                        case NEED_WRAP:
-                            if (outAppBuf.hasRemaining()) {
-                                break;
-                            } else {
-                                break loop;
-                            }
-                        case NEED_UNWRAP:
-                            break loop;
-                        case NEED_TASK:
-                            runDelegatedTasks();
-                            break;
-                        case FINISHED:
-                            setHandshakeSuccess(channel);
-                        default:
-                            if (result.getStatus() == Status.CLOSED) {
-                                success = false;
-                            }
-                            break loop;
-                        }
+                if (i > 0) {
+                    // Empty write requests were consumed.
+                    continue;
+                }
+
+                switch (result.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    break;
+                case NEED_TASK:
+                    if (!runDelegatedTasks()) {
+                        // The tasks are running in another thread, which
+                        // will wrap again when they are finished.
+                        break loop;
                     }
+                    break;
+                case FINISHED:
+                    setHandshakeSuccess(channel);
+                    break;
+                default:
+                    // NEED_UNWRAP - unwrap() will wrap again once the
+                    // handshake makes progress.
+                    break loop;
                 }
             }
-        } catch (SSLException e) {
-            success = false;
-            if (handshaking) {
-                setHandshakeFailure(channel, e);
+
+            if (outNetBuf != null) {
+                ByteBuffer lastOutNetBuf = outNetBuf;
+                outNetBuf = null;
+                writeEncrypted(context, channel, lastOutNetBuf, futures);
             }
+        } catch (SSLException e) {
+            cause = e;
+            throw e;
+        } catch (RuntimeException e) {
+            cause = e;
             throw e;
         } finally {
-            bufferPool.release(outNetBuf);
-
-            if (offered) {
-                flushPendingEncryptedWrites(context);
-            }
-
-            if (!success) {
-                // Mark all remaining pending writes as failure if anything
-                // wrong happened before the write requests are wrapped.
-                // Please note that we don't call setFailure while a lock is
-                // acquired, to avoid a potential dead lock.
-                for (;;) {
-                    PendingWrite pendingWrite;
-                    synchronized (pendingUnencryptedWrites) {
-                        pendingWrite = pendingUnencryptedWrites.poll();
-                        if (pendingWrite == null) {
-                            break;
-                        }
-                    }
-
-                    pendingWrite.future.setFailure(
-                            new IllegalStateException("SSLEngine already closed"));
+            Arrays.fill(gatheredWrites, null);
+            Arrays.fill(gatheredAppBufs, null);
+            if (outNetBuf != null) {
+                // Failed before the batch is written.
+                bufferPool.release(outNetBuf);
+                if (cause != null) {
+                    notifyFutures(futures, cause);
                 }
             }
         }
+    }
 
-        if (future == null) {
-            future = succeededFuture(channel);
+    /**
+     * Writes the encrypted data in the specified buffer without copying it.
+     * The buffer is returned to the pool and the specified futures are
+     * notified once the write request is complete.
+     */
+    private ChannelFuture writeEncrypted(
+            ChannelHandlerContext ctx, Channel channel,
+            final ByteBuffer outNetBuf, final List<ChannelFuture> futures) {
+
+        outNetBuf.flip();
+        if (!outNetBuf.hasRemaining()) {
+            bufferPool.release(outNetBuf);
+            notifyFutures(futures, null);
+            return null;
         }
+
+        ChannelFuture future = future(channel);
+        future.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                bufferPool.release(outNetBuf);
+                notifyFutures(futures, future.isSuccess()? null : future.getCause());
+            }
+        });
+        write(ctx, channel, future, ChannelBuffers.wrappedBuffer(outNetBuf));
         return future;
     }
 
-    private void flushPendingEncryptedWrites(ChannelHandlerContext ctx) {
-        // Avoid possible dead lock and data integrity issue
-        // which is caused by cross communication between more than one channel
-        // in the same VM.
-        if (Thread.holdsLock(pendingEncryptedWrites)) {
+    private static void notifyFutures(List<ChannelFuture> futures, Throwable cause) {
+        if (futures == null) {
             return;
         }
-
-        synchronized (pendingEncryptedWrites) {
-            if (pendingEncryptedWrites.isEmpty()) {
-                return;
+        for (ChannelFuture f: futures) {
+            if (cause == null) {
+                f.setSuccess();
+            } else {
+                f.setFailure(cause);
             }
         }
+    }
 
-        synchronized (pendingEncryptedWrites) {
-            MessageEvent e;
-            while ((e = pendingEncryptedWrites.poll()) != null) {
-                ctx.sendDownstream(e);
+    private void failPendingWrites(Throwable cause) {
+        for (;;) {
+            ChannelFuture future = pendingNonAppDataWrites.poll();
+            if (future == null) {
+                break;
+            }
+            future.setFailure(cause);
+        }
+        for (;;) {
+            PendingWrite pendingWrite = pendingUnencryptedWrites.poll();
+            if (pendingWrite == null) {
+                break;
             }
+            pendingWrite.future.setFailure(cause);
         }
     }
 
     private ChannelFuture wrapNonAppData(ChannelHandlerContext ctx, Channel channel) throws SSLException {
-        ChannelFuture future = null;
+        ChannelFuture future = future(channel);
+        if (wrapThread == Thread.currentThread()) {
+            // Called back while this thread is wrapping, which is safe
+            // because the SSLEngine is not in the middle of a call.
+            wrapNonAppData(ctx, channel, future);
+        } else {
+            pendingNonAppDataWrites.offer(future);
+            wrap(ctx, channel);
+        }
+        return future;
+    }
+
+    private void wrapNonAppData(
+            ChannelHandlerContext ctx, Channel channel, final ChannelFuture future) throws SSLException {
+        final int packetBufferSize = engine.getSession().getPacketBufferSize();
+        ChannelFuture writeFuture = null;
         ByteBuffer outNetBuf = bufferPool.acquire();
 
         SSLEngineResult result;
         try {
+            // A handshake flight usually consists of more than one record,
+            // which are written at once.
             for (;;) {
-                result = engine.wrap(EMPTY_BUFFER, outNetBuf);
-
-                if (result.bytesProduced() > 0) {
-                    outNetBuf.flip();
-                    ChannelBuffer msg = ChannelBuffers.buffer(outNetBuf.remaining());
-                    msg.writeBytes(outNetBuf.array(), 0, msg.capacity());
-                    outNetBuf.clear();
-                    if (channel.isConnected()) {
-                        future = future(channel);
-                        write(ctx, channel, future, msg);
-                    }
-                }
+                result = wrap(EMPTY_BUFFER, outNetBuf);
 
                 switch (result.getHandshakeStatus()) {
                 case FINISHED:
@@ -572,34 +938,84 @@ public class SslHandler extends FrameDecoder {
                     break;
                 }
 
-                if (result.bytesProduced() == 0) {
-                    break;
+                if (result.bytesProduced() == 0 ||
+                    outNetBuf.remaining() < packetBufferSize) {
+                    if (outNetBuf.position() > 0 && channel.isConnected()) {
+                        writeFuture = writeEncrypted(ctx, channel, outNetBuf, null);
+                        outNetBuf = null;
+                    }
+                    if (result.bytesProduced() == 0) {
+                        break;
+                    }
+                    if (outNetBuf == null) {
+                        outNetBuf = bufferPool.acquire();
+                    } else {
+                        outNetBuf.clear();
+                    }
                 }
             }
         } catch (SSLException e) {
-            if (handshaking) {
-                setHandshakeFailure(channel, e);
-            }
+            future.setFailure(e);
             throw e;
         } finally {
-            bufferPool.release(outNetBuf);
+            if (outNetBuf != null) {
+                bufferPool.release(outNetBuf);
+            }
         }
 
-        if (future == null) {
-            future = succeededFuture(channel);
+        if (writeFuture == null) {
+            future.setSuccess();
+        } else {
+            writeFuture.addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture writeFuture) throws Exception {
+                    if (writeFuture.isSuccess()) {
+                        future.setSuccess();
+                    } else {
+                        future.setFailure(writeFuture.getCause());
+                    }
+                }
+            });
         }
-        return future;
     }
 
     private ChannelBuffer unwrap(
-            ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer, int offset, int length) throws SSLException {
+            ChannelHandlerContext ctx, Channel channel,
+            ChannelBuffer buffer, int offset, int length,
+            boolean decoding) throws SSLException {
         ByteBuffer inNetBuf = buffer.toByteBuffer(offset, length);
-        ByteBuffer outAppBuf = bufferPool.acquire();
+
+        // The plaintext is never longer than the record, so it is decrypted
+        // directly into the plaintext chunk, and the slice of the chunk is
+        // the frame.  A pooled buffer is used instead if the SSLEngine
+        // insists on a buffer as big as the application buffer size.
+        ChannelBuffer chunk = null;
+        ByteBuffer outAppBuf;
+        if (decoding && length > 0 && !unwrapNeedsFullBuffer) {
+            chunk = plaintextChunk;
+            if (chunk == null || chunk.writableBytes() < length) {
+                chunk = plaintextChunk = ChannelBuffers.buffer(
+                        Math.max(PLAINTEXT_CHUNK_SIZE, length));
+            }
+            outAppBuf = chunk.toByteBuffer(chunk.writerIndex(), length);
+        } else {
+            outAppBuf = bufferPool.acquire();
+        }
+        final int outAppBufStart = outAppBuf.position();
 
         try {
             loop:
             for (;;) {
-                SSLEngineResult result = engine.unwrap(inNetBuf, outAppBuf);
+                SSLEngineResult result = unwrap(inNetBuf, outAppBuf);
+
+                if (result.getStatus() == Status.BUFFER_OVERFLOW && chunk != null) {
+                    unwrapNeedsFullBuffer = true;
+                    outAppBuf.limit(outAppBuf.position()).position(outAppBufStart);
+                    ByteBuffer pooledOutAppBuf = bufferPool.acquire();
+                    pooledOutAppBuf.put(outAppBuf);
+                    outAppBuf = pooledOutAppBuf;
+                    chunk = null;
+                    continue;
+                }
 
                 switch (result.getHandshakeStatus()) {
                 case NEED_UNWRAP:
@@ -610,9 +1026,26 @@ public class SslHandler extends FrameDecoder {
                     }
                 case NEED_WRAP:
                     wrapNonAppData(ctx, channel);
+                    if (wrapRequests.get() != 0 &&
+                        wrapThread != Thread.currentThread()) {
+                        // Another thread is wrapping what the engine is
+                        // waiting for.  It unwraps the rest when done.
+                        deferUnwrap(inNetBuf, decoding);
+                        break loop;
+                    }
                     break;
                 case NEED_TASK:
-                    runDelegatedTasks();
+                    if (decoding && !inNetBuf.hasRemaining() &&
+                        delegatedTaskExecutor != ImmediateExecutor.INSTANCE) {
+                        if (offloadDelegatedTasks(ctx, channel)) {
+                            break loop;
+                        }
+                    } else if (!runDelegatedTasks()) {
+                        // The wrapping thread is running the tasks.  It
+                        // unwraps the rest when done.
+                        deferUnwrap(inNetBuf, decoding);
+                        break loop;
+                    }
                     break;
                 case FINISHED:
                     setHandshakeSuccess(channel);
@@ -624,70 +1057,286 @@ public class SslHandler extends FrameDecoder {
                 }
             }
 
+            if (chunk != null) {
+                int frameLength = outAppBuf.position() - outAppBufStart;
+                if (frameLength == 0) {
+                    return null;
+                }
+                int frameIndex = chunk.writerIndex();
+                chunk.writerIndex(frameIndex + frameLength);
+                return chunk.slice(frameIndex, frameLength);
+            }
+
             outAppBuf.flip();
 
             if (outAppBuf.hasRemaining()) {
                 ChannelBuffer frame = ChannelBuffers.buffer(outAppBuf.remaining());
-                frame.writeBytes(outAppBuf.array(), 0, frame.capacity());
+                frame.writeBytes(outAppBuf);
                 return frame;
             } else {
                 return null;
             }
         } catch (SSLException e) {
-            if (handshaking) {
+            if (pendingHandshakeFuture.get() != null) {
                 setHandshakeFailure(channel, e);
             }
             throw e;
         } finally {
-            bufferPool.release(outAppBuf);
+            if (chunk == null) {
+                bufferPool.release(outAppBuf);
+            }
+        }
+    }
+
+    private void deferUnwrap(ByteBuffer inNetBuf, boolean decoding) {
+        if (decoding && inNetBuf.hasRemaining()) {
+            unwrapDeferred = true;
+            unwrapDeferredBytes = inNetBuf.remaining();
+        }
+    }
+
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int length, ByteBuffer dst) throws SSLException {
+        SslStatistics statistics = this.statistics;
+        if (statistics == null) {
+            return engine.wrap(srcs, 0, length, dst);
         }
+
+        long startTime = SslStatistics.currentThreadCpuTime();
+        SSLEngineResult result = engine.wrap(srcs, 0, length, dst);
+        statistics.addCpuTime(
+                result.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING,
+                startTime);
+        return result;
+    }
+
+    private SSLEngineResult wrap(ByteBuffer src, ByteBuffer dst) throws SSLException {
+        SslStatistics statistics = this.statistics;
+        if (statistics == null) {
+            return engine.wrap(src, dst);
+        }
+
+        long startTime = SslStatistics.currentThreadCpuTime();
+        SSLEngineResult result = engine.wrap(src, dst);
+        statistics.addCpuTime(true, startTime);
+        return result;
+    }
+
+    private SSLEngineResult unwrap(ByteBuffer src, ByteBuffer dst) throws SSLException {
+        SslStatistics statistics = this.statistics;
+        if (statistics == null) {
+            return engine.unwrap(src, dst);
+        }
+
+        long startTime = SslStatistics.currentThreadCpuTime();
+        SSLEngineResult result = engine.unwrap(src, dst);
+        statistics.addCpuTime(
+                result.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING,
+                startTime);
+        return result;
     }
 
-    private void runDelegatedTasks() {
+    /**
+     * Runs the delegated tasks in the calling thread.
+     *
+     * @return {@code false} if there was no task to run
+     */
+    private boolean runDelegatedTasks() {
+        boolean ran = false;
         Runnable task;
         while ((task = engine.getDelegatedTask()) != null) {
-            delegatedTaskExecutor.execute(task);
+            runDelegatedTask(task);
+            ran = true;
         }
+        return ran;
     }
 
-    private void setHandshakeSuccess(Channel channel) {
-        synchronized (handshakeLock) {
-            handshaking = false;
-            handshaken = true;
+    private void runDelegatedTask(Runnable task) {
+        SslStatistics statistics = this.statistics;
+        if (statistics == null) {
+            task.run();
+            return;
+        }
 
-            if (handshakeFuture == null) {
-                handshakeFuture = newHandshakeFuture(channel);
+        long startTime = SslStatistics.currentThreadCpuTime();
+        try {
+            task.run();
+        } finally {
+            statistics.addCpuTime(true, startTime);
+        }
+    }
+
+    /**
+     * Hands the delegated tasks raised by the received data to the
+     * delegated task executor, and stops reading until they are finished.
+     *
+     * @return {@code false} if the executor rejected the tasks and they were
+     *         run in the calling thread, which should go on unwrapping
+     */
+    private boolean offloadDelegatedTasks(
+            final ChannelHandlerContext ctx, final Channel channel) {
+        final List<Runnable> tasks = new ArrayList<Runnable>(2);
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            tasks.add(task);
+        }
+        if (tasks.isEmpty()) {
+            // Another thread is running the tasks.
+            return true;
+        }
+
+        boolean suspended;
+        synchronized (inboundLock) {
+            delegatedTasksRunning = true;
+            suspended = inboundSuspended;
+            if (!suspended) {
+                suspendedInbound = ChannelBuffers.dynamicBuffer();
+                inboundSuspended = true;
+            }
+        }
+        channel.setReadable(false);
+
+        Runnable runner = new Runnable() {
+            public void run() {
+                for (Runnable task: tasks) {
+                    runDelegatedTask(task);
+                }
+                resumeInbound(ctx, channel);
+            }
+        };
+        try {
+            delegatedTaskExecutor.execute(runner);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // The executor is saturated or shut down.  Run the tasks here
+            // and go on unwrapping rather than decoding the suspended data
+            // in the middle of decoding a record.
+            for (Runnable t: tasks) {
+                runDelegatedTask(t);
+            }
+            synchronized (inboundLock) {
+                delegatedTasksRunning = false;
+                if (!suspended) {
+                    suspendedInbound = null;
+                    inboundSuspended = false;
+                }
             }
+            channel.setReadable(true);
+            return false;
         }
-        handshakeFuture.setSuccess();
+    }
+
+    private void resumeInbound(ChannelHandlerContext ctx, Channel channel) {
+        try {
+            synchronized (inboundLock) {
+                delegatedTasksRunning = false;
+            }
+            if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                wrapNonAppData(ctx, channel);
+            }
+            try {
+                synchronized (inboundLock) {
+                    if (inboundSuspended && !delegatedTasksRunning) {
+                        decodeSuspendedInbound(ctx, channel);
+                    }
+                }
+            } finally {
+                fireSuspendedFrames(ctx, channel);
+            }
+            wrap(ctx, channel);
+        } catch (Throwable t) {
+            fireExceptionCaught(ctx, channel, t);
+        } finally {
+            boolean resume;
+            synchronized (inboundLock) {
+                resume = !delegatedTasksRunning;
+            }
+            if (resume && channel.isOpen()) {
+                channel.setReadable(true);
+            }
+        }
+    }
+
+    /**
+     * Decodes the received data which was waiting for a wrapping thread.
+     * Called by the thread which stopped wrapping, or by the decoding
+     * thread if the wrapping thread stopped before the data was kept.
+     */
+    private void resumeInboundAfterWrap(ChannelHandlerContext ctx, Channel channel) {
+        if (Thread.holdsLock(inboundLock)) {
+            // Wrapped while decoding the suspended inbound data, which the
+            // loop in decodeSuspendedInbound() goes on with.  The caller
+            // fires the frames after it releases inboundLock.
+            awaitingWrap = false;
+            return;
+        }
+
+        try {
+            synchronized (inboundLock) {
+                if (!awaitingWrap) {
+                    return;
+                }
+                awaitingWrap = false;
+                if (inboundSuspended && !delegatedTasksRunning) {
+                    decodeSuspendedInbound(ctx, channel);
+                }
+            }
+        } catch (Throwable t) {
+            fireExceptionCaught(ctx, channel, t);
+        } finally {
+            fireSuspendedFrames(ctx, channel);
+        }
+    }
+
+    private void setHandshakeSuccess(Channel channel) {
+        handshaken = true;
+
+        ChannelFuture future = pendingHandshakeFuture.getAndSet(null);
+        if (future != null) {
+            long handshakeTime = System.nanoTime() - handshakeStartTime;
+            lastHandshakeTime = handshakeTime;
+
+            SslStatistics statistics = this.statistics;
+            if (statistics != null) {
+                // A resumed session was created by an earlier handshake.
+                boolean resumed =
+                    engine.getSession().getCreationTime() < handshakeStartTimeMillis;
+                statistics.handshakeComplete(resumed, handshakeTime);
+            }
+        } else {
+            future = currentHandshakeFuture(channel);
+        }
+        future.setSuccess();
     }
 
     private void setHandshakeFailure(Channel channel, SSLException cause) {
-        synchronized (handshakeLock) {
-            handshaking = false;
-            handshaken = false;
+        handshaken = false;
+        currentHandshakeFuture(channel).setFailure(cause);
+    }
 
-            if (handshakeFuture == null) {
-                handshakeFuture = newHandshakeFuture(channel);
+    private ChannelFuture currentHandshakeFuture(Channel channel) {
+        ChannelFuture future = pendingHandshakeFuture.getAndSet(null);
+        if (future == null) {
+            // The handshake was not initiated by handshake(Channel).
+            future = handshakeFuture;
+            if (future == null) {
+                future = handshakeFuture = newHandshakeFuture(channel);
             }
         }
-        handshakeFuture.setFailure(cause);
+        return future;
     }
 
     private void closeOutboundAndChannel(
             final ChannelHandlerContext context, final ChannelStateEvent e) throws SSLException {
-        unwrap(context, e.getChannel(), ChannelBuffers.EMPTY_BUFFER, 0, 0);
+        unwrap(context, e.getChannel(), ChannelBuffers.EMPTY_BUFFER, 0, 0, false);
         if (!engine.isInboundDone()) {
             if (sentCloseNotify.compareAndSet(false, true)) {
+                // The channel is closed by decode() when the close_notify
+                // from the remote peer arrives, which implies the local
+                // close_notify was written.  The future is offered first
+                // because the write might be notified after the arrival.
+                closeFutures.offer(e.getFuture());
                 engine.closeOutbound();
-                synchronized (closeFutures) {
-                    ChannelFuture closeNotifyFuture = wrapNonAppData(context, e.getChannel());
-                    closeNotifyFuture.addListener(new ChannelFutureListener() {
-                        public void operationComplete(ChannelFuture closeNotifyFuture) throws Exception {
-                            closeFutures.offer(e.getFuture());
-                        }
-                    });
-                }
+                wrapNonAppData(context, e.getChannel());
                 return;
             }
         }
@@ -708,6 +1357,20 @@ public class SslHandler extends FrameDecoder {
         return future;
     }
 
+    private static final class DelegatedTaskThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadId = new AtomicInteger();
+
+        DelegatedTaskThreadFactory() {
+            super();
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SSL delegated task #" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
     private static class PendingWrite {
         final ChannelFuture future;
         final ByteBuffer outAppBuf;
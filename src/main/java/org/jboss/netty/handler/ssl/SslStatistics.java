@@ -0,0 +1,177 @@
+/*
+ * JBoss, Home of Professional Open Source
+ *
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * by the @author tags. See the COPYRIGHT.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.netty.handler.ssl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+
+/**
+ * Counts the SSL / TLS handshakes completed by the {@link SslHandler}s which
+ * report to this object, and the time they took.  A handshake is counted
+ * only when it was started by {@link SslHandler#handshake(Channel)}, and it
+ * is counted as resumed when the negotiated session was created by an
+ * earlier handshake.
+ * <p>
+ * Please note that the {@link javax.net.ssl.SSLEngine} of some JDK versions
+ * creates a new session object for a resumed TLSv1.3 session, which is
+ * counted as a full handshake.
+ *
+ * <h3>CPU time</h3>
+ * <p>
+ * The CPU time spent by the {@link javax.net.ssl.SSLEngine} is also
+ * reported, split into the time spent on the handshakes (including the
+ * delegated tasks) and the time spent on encrypting and decrypting the
+ * application data.  It is measured only if the JVM supports measuring
+ * the CPU time of the current thread.
+ *
+ * @author The Netty Project (netty-dev@lists.jboss.org)
+ * @author Trustin Lee (tlee@redhat.com)
+ *
+ * @version $Rev$, $Date$
+ *
+ * @see SslHandler#setStatistics(SslStatistics)
+ */
+public class SslStatistics {
+
+    private static final ThreadMXBean THREAD_MX_BEAN;
+
+    static {
+        ThreadMXBean threadMXBean = null;
+        try {
+            threadMXBean = ManagementFactory.getThreadMXBean();
+            if (!threadMXBean.isCurrentThreadCpuTimeSupported()) {
+                threadMXBean = null;
+            }
+        } catch (Throwable t) {
+            // Not supported.
+        }
+        THREAD_MX_BEAN = threadMXBean;
+    }
+
+    /**
+     * Returns the CPU time of the current thread in nanoseconds, or
+     * {@code -1} if it can't be measured.
+     */
+    static long currentThreadCpuTime() {
+        if (THREAD_MX_BEAN == null) {
+            return -1;
+        }
+        return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+    }
+
+    private final AtomicLong fullHandshakeCount = new AtomicLong();
+    private final AtomicLong fullHandshakeTime = new AtomicLong();
+    private final AtomicLong resumedHandshakeCount = new AtomicLong();
+    private final AtomicLong resumedHandshakeTime = new AtomicLong();
+    private final AtomicLong handshakeCpuTime = new AtomicLong();
+    private final AtomicLong bulkCpuTime = new AtomicLong();
+
+    /**
+     * Creates a new instance.
+     */
+    public SslStatistics() {
+        super();
+    }
+
+    /**
+     * Returns the number of the completed full handshakes.
+     */
+    public long getFullHandshakeCount() {
+        return fullHandshakeCount.get();
+    }
+
+    /**
+     * Returns the total time taken by the completed full handshakes in
+     * nanoseconds.
+     */
+    public long getFullHandshakeTime() {
+        return fullHandshakeTime.get();
+    }
+
+    /**
+     * Returns the number of the completed handshakes which resumed a
+     * previous session.
+     */
+    public long getResumedHandshakeCount() {
+        return resumedHandshakeCount.get();
+    }
+
+    /**
+     * Returns the total time taken by the completed handshakes which
+     * resumed a previous session in nanoseconds.
+     */
+    public long getResumedHandshakeTime() {
+        return resumedHandshakeTime.get();
+    }
+
+    /**
+     * Returns the CPU time spent on the handshakes in nanoseconds, including
+     * the delegated tasks of the {@link javax.net.ssl.SSLEngine}.
+     */
+    public long getHandshakeCpuTime() {
+        return handshakeCpuTime.get();
+    }
+
+    /**
+     * Returns the CPU time spent on encrypting and decrypting the
+     * application data in nanoseconds.
+     */
+    public long getBulkCpuTime() {
+        return bulkCpuTime.get();
+    }
+
+    void addCpuTime(boolean handshake, long startTime) {
+        if (startTime < 0) {
+            return;
+        }
+        long cpuTime = currentThreadCpuTime() - startTime;
+        if (cpuTime <= 0) {
+            return;
+        }
+        if (handshake) {
+            handshakeCpuTime.addAndGet(cpuTime);
+        } else {
+            bulkCpuTime.addAndGet(cpuTime);
+        }
+    }
+
+    void handshakeComplete(boolean resumed, long handshakeTime) {
+        if (resumed) {
+            resumedHandshakeCount.incrementAndGet();
+            resumedHandshakeTime.addAndGet(handshakeTime);
+        } else {
+            fullHandshakeCount.incrementAndGet();
+            fullHandshakeTime.addAndGet(handshakeTime);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() +
+               "(full: " + getFullHandshakeCount() +
+               ", resumed: " + getResumedHandshakeCount() + ')';
+    }
+}